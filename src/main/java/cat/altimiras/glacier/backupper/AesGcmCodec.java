@@ -0,0 +1,144 @@
+package cat.altimiras.glacier.backupper;
+
+import software.amazon.awssdk.utils.BinaryUtils;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * AES-GCM encryption of every block on its own. Every archive has its own random key, stored in the inventory
+ * encrypted with the master key. The nonce of a block is a random prefix of the archive and the block index, so it is
+ * never reused and a block moved to other position does not decrypt. The place of the block in the original content
+ * and whether it is the last one are authenticated too, so blocks dropped from the end or an index rewritten do not
+ * decrypt either (as the STREAM construction). Archives of the first version authenticate only the index
+ */
+class AesGcmCodec implements BlockCodec {
+
+	static final String NAME = "aes-gcm";
+
+	private static final int KEY_SIZE = 32;
+	private static final int NONCE_PREFIX = 4;
+	private static final int IV = 12;
+	private static final int TAG_BITS = 128;
+	//logical offset, logical length and last block flag
+	private static final int AAD = 13;
+
+	//blocks authenticate its position
+	static final int VERSION = 1;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	//cipher lookup is slow, it is initialized again for each block
+	private static final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+		try {
+			return Cipher.getInstance("AES/GCM/NoPadding");
+		} catch (Exception e) {
+			throw new IllegalStateException("AES-GCM is not available", e);
+		}
+	});
+
+	private final SecretKey key;
+	private final byte[] noncePrefix;
+	private final int version;
+
+	private AesGcmCodec(SecretKey key, byte[] noncePrefix, int version) {
+		this.key = key;
+		this.noncePrefix = noncePrefix;
+		this.version = version;
+	}
+
+	/**
+	 * New codec with a new random key, for a new archive
+	 */
+	static AesGcmCodec create() {
+		byte[] key = new byte[KEY_SIZE];
+		byte[] noncePrefix = new byte[NONCE_PREFIX];
+		random.nextBytes(key);
+		random.nextBytes(noncePrefix);
+		return new AesGcmCodec(new SecretKeySpec(key, "AES"), noncePrefix, VERSION);
+	}
+
+	/**
+	 * Codec of an archive from the metadata of its item
+	 */
+	static AesGcmCodec open(Item.Encryption encryption, SecretKey masterKey) throws Exception {
+		if (!keyId(masterKey).equals(encryption.getKeyId())) {
+			throw new IllegalArgumentException("File was encrypted with other key: " + encryption.getKeyId());
+		}
+		byte[] wrapped = Base64.getDecoder().decode(encryption.getKey());
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(Cipher.DECRYPT_MODE, masterKey, new GCMParameterSpec(TAG_BITS, wrapped, 0, IV));
+		byte[] key = cipher.doFinal(wrapped, IV, wrapped.length - IV);
+		return new AesGcmCodec(new SecretKeySpec(key, "AES"), Base64.getDecoder().decode(encryption.getNoncePrefix()), encryption.getVersion());
+	}
+
+	/**
+	 * Master key from a file with 16, 24 or 32 random bytes
+	 */
+	static SecretKey readKey(Path file) throws Exception {
+		byte[] key = Files.readAllBytes(file);
+		if (key.length != 16 && key.length != 24 && key.length != 32) {
+			throw new IllegalArgumentException("Key file must have 16, 24 or 32 bytes");
+		}
+		return new SecretKeySpec(key, "AES");
+	}
+
+	private static String keyId(SecretKey masterKey) throws Exception {
+		byte[] hash = MessageDigest.getInstance("SHA-256").digest(masterKey.getEncoded());
+		return BinaryUtils.toHex(Arrays.copyOf(hash, 8));
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public Item.Encryption getEncryption(SecretKey masterKey) throws Exception {
+		byte[] wrapped = new byte[IV + KEY_SIZE + TAG_BITS / 8];
+		random.nextBytes(wrapped);
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, masterKey, new GCMParameterSpec(TAG_BITS, wrapped, 0, IV));
+		cipher.doFinal(key.getEncoded(), 0, KEY_SIZE, wrapped, IV);
+		return new Item.Encryption(keyId(masterKey), Base64.getEncoder().encodeToString(wrapped), Base64.getEncoder().encodeToString(noncePrefix), version);
+	}
+
+	@Override
+	public byte[] encode(Position position, byte[] block, int length) throws Exception {
+		Cipher cipher = ciphers.get();
+		cipher.init(Cipher.ENCRYPT_MODE, key, nonce(position.getIndex()));
+		authenticate(cipher, position);
+		return cipher.doFinal(block, 0, length);
+	}
+
+	@Override
+	public byte[] decode(Position position, byte[] block, int offset, int length) throws Exception {
+		Cipher cipher = ciphers.get();
+		cipher.init(Cipher.DECRYPT_MODE, key, nonce(position.getIndex()));
+		authenticate(cipher, position);
+		return cipher.doFinal(block, offset, length);
+	}
+
+	private void authenticate(Cipher cipher, Position position) {
+		if (version >= VERSION) {
+			ByteBuffer aad = ByteBuffer.allocate(AAD);
+			aad.putLong(position.getLogicalOffset()).putInt(position.getLogicalLength()).put((byte) (position.isLast() ? 1 : 0));
+			cipher.updateAAD(aad.array());
+		}
+	}
+
+	private GCMParameterSpec nonce(long index) {
+		ByteBuffer nonce = ByteBuffer.allocate(IV);
+		nonce.put(noncePrefix).putLong(index);
+		return new GCMParameterSpec(TAG_BITS, nonce.array());
+	}
+}
@@ -0,0 +1,157 @@
+package cat.altimiras.glacier.backupper;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.awssdk.services.glacier.GlacierAsyncClient;
+import software.amazon.awssdk.services.glacier.model.DescribeJobRequest;
+import software.amazon.awssdk.services.glacier.model.DescribeJobResponse;
+import software.amazon.awssdk.services.glacier.model.GetJobOutputRequest;
+import software.amazon.awssdk.services.glacier.model.GetJobOutputResponse;
+import software.amazon.awssdk.services.glacier.model.UploadMultipartPartRequest;
+import software.amazon.awssdk.services.glacier.model.UploadMultipartPartResponse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Non blocking client over the NIO http client, a few event loop threads drive all requests in flight.
+ * Part content is published straight from the chunk buffers and downloaded ranges are written as buffers arrive,
+ * out of the event loop.
+ */
+class AsyncTransferEngine implements TransferEngine {
+
+	private final GlacierClients clients;
+	//writers block and hash, they are kept out of the event loop
+	private final ExecutorService writers;
+
+	AsyncTransferEngine(GlacierClients clients) {
+		this.clients = clients;
+		this.writers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+			Thread t = new Thread(r, "range-writer");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	@Override
+	public CompletableFuture<UploadMultipartPartResponse> uploadPart(String region, UploadMultipartPartRequest request, FileChunker.Chunk chunk) {
+		return getClient(region).uploadMultipartPart(request, new ChunkRequestBody(chunk));
+	}
+
+	@Override
+	public CompletableFuture<GetJobOutputResponse> downloadRange(String region, GetJobOutputRequest request, RangeWriter writer) {
+		return getClient(region).getJobOutput(request, new WriterResponseTransformer(writer, writers));
+	}
+
+	@Override
+	public CompletableFuture<DescribeJobResponse> describeJob(String region, DescribeJobRequest request) {
+		//the client does not retry
+		return Retry.withRetries("Status of job " + request.jobId(), () -> getClient(region).describeJob(request), () -> {});
+	}
+
+	@Override
+	public void close() {
+		//clients are shared, they are closed by its registry
+		writers.shutdownNow();
+	}
+
+	private GlacierAsyncClient getClient(String region) {
+		return clients.getAsync(region);
+	}
+
+	/**
+	 * Writes the stream of a range on the writers executor, the next buffer is requested once the previous one is
+	 * written, so the writer gives the pace and writes of a range keep its order
+	 */
+	private static class WriterResponseTransformer implements AsyncResponseTransformer<GetJobOutputResponse, GetJobOutputResponse> {
+
+		private final RangeWriter writer;
+		private final Executor writers;
+		private volatile CompletableFuture<GetJobOutputResponse> future;
+		private volatile GetJobOutputResponse response;
+
+		WriterResponseTransformer(RangeWriter writer, Executor writers) {
+			this.writer = writer;
+			this.writers = writers;
+		}
+
+		@Override
+		public CompletableFuture<GetJobOutputResponse> prepare() {
+			future = new CompletableFuture<>();
+			return future;
+		}
+
+		@Override
+		public void onResponse(GetJobOutputResponse response) {
+			this.response = response;
+		}
+
+		@Override
+		public void onStream(SdkPublisher<ByteBuffer> publisher) {
+			publisher.subscribe(new Subscriber<ByteBuffer>() {
+
+				private Subscription subscription;
+				//last write, the end of the range waits for it
+				private volatile CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+
+				@Override
+				public void onSubscribe(Subscription s) {
+					subscription = s;
+					write(writer::start);
+				}
+
+				@Override
+				public void onNext(ByteBuffer data) {
+					write(() -> writer.write(data));
+				}
+
+				@Override
+				public void onError(Throwable t) {
+					written.whenComplete((v, e) -> future.completeExceptionally(t));
+				}
+
+				@Override
+				public void onComplete() {
+					written.whenComplete((v, e) -> {
+						if (e == null) {
+							future.complete(response);
+						}
+					});
+				}
+
+				private void write(Write write) {
+					written = CompletableFuture.runAsync(() -> {
+						try {
+							write.run();
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}, writers).whenComplete((v, e) -> {
+						if (e == null) {
+							subscription.request(1);
+						} else {
+							subscription.cancel();
+							future.completeExceptionally(e.getCause() != null ? e.getCause() : e);
+						}
+					});
+				}
+			});
+		}
+
+		@Override
+		public void exceptionOccurred(Throwable error) {
+			future.completeExceptionally(error);
+		}
+	}
+
+	private interface Write {
+		void run() throws IOException;
+	}
+}
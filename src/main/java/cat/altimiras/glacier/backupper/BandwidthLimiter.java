@@ -0,0 +1,138 @@
+package cat.altimiras.glacier.backupper;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket shared by all transfers. The rate depends on the time of day, for example "08:00-20:00=20" limits to
+ * 20MB/s by day and nothing at night, "5" limits to 5MB/s all day. Transfers wait in order of arrival, so files
+ * uploaded at the same time get the same share
+ */
+class BandwidthLimiter {
+
+	private static final long MB = 1024 * 1024;
+
+	private static final long SLICE = 256 * 1024;
+
+	//a wait ends early if the limit is gone, it can change with the time of day
+	private static final long MAX_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final List<Window> schedule;
+	private final ReentrantLock lock = new ReentrantLock(true);
+	private double tokens;
+	private long last = System.nanoTime();
+
+	private BandwidthLimiter(List<Window> schedule) {
+		this.schedule = schedule;
+	}
+
+	/**
+	 * Comma separated MB/s by time of day: HH:mm-HH:mm=rate, or a rate for the whole day. Without limit out of the windows
+	 */
+	static BandwidthLimiter parse(String spec) {
+		List<Window> schedule = new ArrayList<>();
+		for (String window : spec.split(",")) {
+			String[] parts = window.trim().split("=");
+			if (parts.length == 1) {
+				schedule.add(new Window(LocalTime.MIN, LocalTime.MIN, rate(parts[0])));
+			} else {
+				String[] times = parts[0].split("-");
+				if (times.length != 2) {
+					throw new IllegalArgumentException("Bandwidth window must be HH:mm-HH:mm=MB/s: " + window);
+				}
+				schedule.add(new Window(LocalTime.parse(times[0].trim()), LocalTime.parse(times[1].trim()), rate(parts[1])));
+			}
+		}
+		return new BandwidthLimiter(schedule);
+	}
+
+	private static long rate(String mb) {
+		return (long) (Double.valueOf(mb.trim()) * MB);
+	}
+
+	/**
+	 * Waits till bytes can be transferred. Tokens are taken by slices, releasing the turn between them,
+	 * so a big transfer does not hold back the small ones
+	 */
+	void acquire(long bytes) throws InterruptedException {
+		long pending = bytes;
+		while (pending > 0) {
+			long slice = Math.min(pending, SLICE);
+			if (!acquireSlice(slice)) {
+				return;
+			}
+			pending -= slice;
+		}
+	}
+
+	/**
+	 * False when there is no limit now. The slice is taken at once, leaving the bucket in debt if there are not
+	 * enough tokens, and the debt is waited out of the lock, so slices taken later wait behind it
+	 */
+	private boolean acquireSlice(long slice) throws InterruptedException {
+		long wait;
+		lock.lockInterruptibly();
+		try {
+			long rate = rate(LocalTime.now());
+			long now = System.nanoTime();
+			if (rate <= 0) {
+				tokens = 0;
+				last = now;
+				return false;
+			}
+			//bursts up to one second of the rate
+			tokens = Math.min(Math.max(rate, SLICE), tokens + (now - last) * rate / 1e9);
+			last = now;
+			tokens -= slice;
+			wait = tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate) + 1;
+		} finally {
+			lock.unlock();
+		}
+
+		while (wait > 0) {
+			if (rate(LocalTime.now()) <= 0) {
+				break;
+			}
+			long sleep = Math.min(MAX_WAIT_NANOS, wait);
+			TimeUnit.NANOSECONDS.sleep(sleep);
+			wait -= sleep;
+		}
+		return true;
+	}
+
+	/**
+	 * Bytes per second now, 0 without limit
+	 */
+	long rate(LocalTime now) {
+		for (Window window : schedule) {
+			if (window.contains(now)) {
+				return window.rate;
+			}
+		}
+		return 0;
+	}
+
+	private static class Window {
+
+		private final LocalTime from;
+		private final LocalTime to;
+		private final long rate;
+
+		Window(LocalTime from, LocalTime to, long rate) {
+			this.from = from;
+			this.to = to;
+			this.rate = rate;
+		}
+
+		//from == to is the whole day, to before from goes through midnight
+		boolean contains(LocalTime time) {
+			if (!from.isBefore(to)) {
+				return from.equals(to) || !time.isBefore(from) || time.isBefore(to);
+			}
+			return !time.isBefore(from) && time.isBefore(to);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package cat.altimiras.glacier.backupper;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Transforms blocks of an archive (compression, encryption) independently, so blocks can be encoded and decoded in parallel and read one by one
+ */
+interface BlockCodec {
+
+	String getName();
+
+	/**
+	 * Encoded content of a block at the position
+	 */
+	byte[] encode(Position position, byte[] block, int length) throws Exception;
+
+	/**
+	 * Original content of a block at the position
+	 */
+	byte[] decode(Position position, byte[] block, int offset, int length) throws Exception;
+
+	/**
+	 * Key of the archive to store in the inventory, null if it is not encrypted
+	 */
+	default Item.Encryption getEncryption(SecretKey masterKey) throws Exception {
+		return null;
+	}
+
+	/**
+	 * Codec of an item, null if it was stored as it is
+	 */
+	static BlockCodec of(Item item, SecretKey masterKey) throws Exception {
+		if (item.getCodec() == null) {
+			return null;
+		}
+		BlockCodec codec = null;
+		for (String name : item.getCodec().split("\\+")) {
+			BlockCodec stage;
+			if (DeflateCodec.NAME.equals(name)) {
+				stage = new DeflateCodec();
+			} else if (AesGcmCodec.NAME.equals(name)) {
+				if (masterKey == null) {
+					throw new IllegalArgumentException("File is encrypted, -ek <key file> is required");
+				}
+				stage = AesGcmCodec.open(item.getEncryption(), masterKey);
+			} else {
+				throw new IllegalArgumentException("Unknown codec " + name);
+			}
+			codec = codec == null ? stage : new ChainCodec(codec, stage);
+		}
+		return codec;
+	}
+
+	/**
+	 * Place of a block in the archive and in the original content
+	 */
+	final class Position {
+
+		private final long index;
+		private final long logicalOffset;
+		private final int logicalLength;
+		private final boolean last;
+
+		Position(long index, long logicalOffset, int logicalLength, boolean last) {
+			this.index = index;
+			this.logicalOffset = logicalOffset;
+			this.logicalLength = logicalLength;
+			this.last = last;
+		}
+
+		public long getIndex() {
+			return index;
+		}
+
+		public long getLogicalOffset() {
+			return logicalOffset;
+		}
+
+		public int getLogicalLength() {
+			return logicalLength;
+		}
+
+		public boolean isLast() {
+			return last;
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package cat.altimiras.glacier.backupper;
+
+import software.amazon.awssdk.utils.BinaryUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Encodes a stream by blocks on all cores at the same time, encoded blocks are read in order as a stream laid out as a {@link BlockFrame}
+ */
+class BlockEncoder extends InputStream {
+
+	private final InputStream source;
+	private final BlockCodec codec;
+	private final ExecutorService encoders;
+	private final int maxInFlight;
+	private final Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+	private final List<BlockFrame.Entry> entries = new ArrayList<>();
+	//tree hashes of the original blocks, hashed on all cores
+	private final Deque<Future<byte[]>> blockHashes = new ArrayDeque<>();
+	private final TreeHasher content = new TreeHasher();
+	private String fingerprint;
+	private ByteBuffer current = ByteBuffer.allocate(0);
+	//block read and not encoded yet, till it is known whether it is the last one
+	private byte[] ahead;
+	private int aheadLength;
+	private long blocks;
+	private long logicalSize;
+	private long encodedSize;
+	private boolean eof;
+	private boolean indexed;
+
+	BlockEncoder(InputStream source, BlockCodec codec) throws Exception {
+		this.source = source;
+		this.codec = codec;
+		int cores = Runtime.getRuntime().availableProcessors();
+		this.maxInFlight = cores * 2;
+		this.encoders = Executors.newFixedThreadPool(cores, r -> {
+			Thread t = new Thread(r, "block-encoder");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Max size of the encoded content of size bytes
+	 */
+	static long maxSize(long size) {
+		long blocks = (size + BlockFrame.BLOCK_SIZE - 1) / BlockFrame.BLOCK_SIZE;
+		return size + blocks * (BlockFrame.HEADER + BlockFrame.ENTRY + 64) + BlockFrame.TRAILER;
+	}
+
+	long getLogicalSize() {
+		return logicalSize;
+	}
+
+	/**
+	 * Same fingerprint of the original content than files, its tree hash, available once the stream is consumed
+	 */
+	String fingerprint() {
+		if (!indexed) {
+			throw new IllegalStateException("Stream has not been consumed yet");
+		}
+		if (fingerprint == null) {
+			fingerprint = BinaryUtils.toHex(content.digest());
+		}
+		return fingerprint;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (!current.hasRemaining()) {
+			if (!next()) {
+				return -1;
+			}
+		}
+		int n = Math.min(len, current.remaining());
+		current.get(b, off, n);
+		return n;
+	}
+
+	private boolean next() throws IOException {
+		fill();
+		if (!inFlight.isEmpty()) {
+			byte[] block = await(inFlight.poll());
+			//blocks are of a power of 2 MB
+			content.addNode(await(blockHashes.poll()), Integer.numberOfTrailingZeros(BlockFrame.BLOCK_SIZE / TreeHash.ONE_MB));
+			ByteBuffer header = ByteBuffer.wrap(block, 0, BlockFrame.HEADER);
+			int length = header.getInt();
+			int logicalLength = header.getInt();
+			long logicalOffset = entries.isEmpty() ? 0 : entries.get(entries.size() - 1).getLogicalOffset() + entries.get(entries.size() - 1).getLogicalLength();
+			entries.add(new BlockFrame.Entry(encodedSize, length, logicalOffset, logicalLength));
+			encodedSize += block.length;
+			current = ByteBuffer.wrap(block);
+			return true;
+		}
+		if (!indexed) {
+			current = BlockFrame.index(entries);
+			encodedSize += current.remaining();
+			indexed = true;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reads blocks and starts to encode them until there are enough in flight. A block is encoded once the next one
+	 * is read, to know if it is the last. Empty content is encoded as a single empty block, so there is always a last one
+	 */
+	private void fill() throws IOException {
+		while (!eof && inFlight.size() < maxInFlight) {
+			byte[] block = new byte[BlockFrame.BLOCK_SIZE];
+			int length = 0;
+			int n;
+			while (length < block.length && (n = source.read(block, length, block.length - length)) >= 0) {
+				length += n;
+			}
+			if (length < block.length) {
+				eof = true;
+			}
+			if (ahead != null && (length > 0 || eof)) {
+				encode(ahead, aheadLength, length == 0);
+				ahead = null;
+			}
+			if (length > 0 && !eof) {
+				ahead = block;
+				aheadLength = length;
+			} else if (length > 0 || blocks == 0) {
+				encode(block, length, true);
+			}
+		}
+	}
+
+	private void encode(byte[] block, int length, boolean last) {
+		BlockCodec.Position position = new BlockCodec.Position(blocks++, logicalSize, length, last);
+		logicalSize += length;
+		blockHashes.add(encoders.submit(() -> new TreeHasher().update(block, 0, length).digest()));
+		inFlight.add(encoders.submit(() -> {
+			byte[] encoded = codec.encode(position, block, length);
+			byte[] framed = new byte[BlockFrame.HEADER + encoded.length];
+			BlockFrame.header(encoded.length, length).get(framed, 0, BlockFrame.HEADER);
+			System.arraycopy(encoded, 0, framed, BlockFrame.HEADER, encoded.length);
+			return framed;
+		}));
+	}
+
+	private static byte[] await(Future<byte[]> block) throws IOException {
+		try {
+			return block.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted encoding a block", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Unable to encode a block", e.getCause());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		encoders.shutdownNow();
+		source.close();
+	}
+}
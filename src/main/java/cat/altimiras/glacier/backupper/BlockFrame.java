@@ -0,0 +1,113 @@
+package cat.altimiras.glacier.backupper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Layout of an encoded archive:
+ * blocks, each one with a header (encoded length, logical length) and its encoded content,
+ * then an index with the position of every block and a trailer with the position of the index.
+ * Any block can be read without reading the ones before it
+ */
+class BlockFrame {
+
+	static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+	static final int HEADER = 8;
+
+	static final int ENTRY = 24;
+
+	static final int TRAILER = 16;
+
+	//"GBF1"
+	private static final int MAGIC = 0x47424631;
+
+	static ByteBuffer header(int length, int logicalLength) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(length).putInt(logicalLength).flip();
+		return header;
+	}
+
+	static ByteBuffer index(List<Entry> entries) {
+		ByteBuffer index = ByteBuffer.allocate(entries.size() * ENTRY + TRAILER);
+		long indexOffset = 0;
+		for (Entry entry : entries) {
+			index.putLong(entry.offset).putInt(entry.length).putLong(entry.logicalOffset).putInt(entry.logicalLength);
+			indexOffset = entry.offset + HEADER + entry.length;
+		}
+		index.putLong(indexOffset).putInt(entries.size()).putInt(MAGIC).flip();
+		return index;
+	}
+
+	/**
+	 * Position of the index from the trailer, the last bytes of the archive
+	 */
+	static long indexOffset(ByteBuffer trailer) {
+		if (trailer.getInt(trailer.position() + 12) != MAGIC) {
+			throw new IllegalStateException("Archive is not encoded by blocks");
+		}
+		return trailer.getLong(trailer.position());
+	}
+
+	static List<Entry> entries(ByteBuffer index) {
+		List<Entry> entries = new ArrayList<>();
+		while (index.remaining() >= ENTRY) {
+			entries.add(new Entry(index.getLong(), index.getInt(), index.getLong(), index.getInt()));
+		}
+		return entries;
+	}
+
+	/**
+	 * Every block must start where the previous one ends, in the archive and in the original content, and the index
+	 * right after the last one
+	 */
+	static void checkContiguous(List<Entry> entries, long indexOffset) {
+		long offset = 0;
+		long logicalOffset = 0;
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = entries.get(i);
+			if (entry.offset != offset || entry.logicalOffset != logicalOffset || entry.length < 0 || entry.logicalLength < 0) {
+				throw new IllegalStateException("Index of the archive is not contiguous at block " + i);
+			}
+			offset += HEADER + entry.length;
+			logicalOffset += entry.logicalLength;
+		}
+		if (offset != indexOffset) {
+			throw new IllegalStateException("Index of the archive does not follow its last block");
+		}
+	}
+
+	static class Entry {
+
+		//start of the header in the archive
+		private final long offset;
+		//encoded length, without header
+		private final int length;
+		private final long logicalOffset;
+		private final int logicalLength;
+
+		Entry(long offset, int length, long logicalOffset, int logicalLength) {
+			this.offset = offset;
+			this.length = length;
+			this.logicalOffset = logicalOffset;
+			this.logicalLength = logicalLength;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public long getLogicalOffset() {
+			return logicalOffset;
+		}
+
+		public int getLogicalLength() {
+			return logicalLength;
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package cat.altimiras.glacier.backupper;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Direct buffers reused by the transfers, so receiving a range does not allocate. A buffer is created when all pooled
+ * ones are in use, and kept for later if the pool is not full
+ */
+class BufferPool {
+
+	private final int bufferSize;
+	private final BlockingQueue<ByteBuffer> buffers;
+
+	BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.buffers = new ArrayBlockingQueue<>(maxPooled);
+	}
+
+	ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	void release(ByteBuffer buffer) {
+		buffers.offer(buffer);
+	}
+}
@@ -0,0 +1,92 @@
+package cat.altimiras.glacier.backupper;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream over the remaining bytes of a sequence of buffers. Buffers are not modified.
+ * Mark is supported without read limit, so the whole content can be read again after a reset.
+ */
+class ByteBufferInputStream extends InputStream {
+
+	private final ByteBuffer[] buffers;
+	private final int[] starts;
+	private int current;
+	private long position;
+	private long mark;
+
+	ByteBufferInputStream(ByteBuffer... buffers) {
+		this.buffers = new ByteBuffer[buffers.length];
+		this.starts = new int[buffers.length];
+		for (int i = 0; i < buffers.length; i++) {
+			this.buffers[i] = buffers[i].duplicate();
+			this.starts[i] = buffers[i].position();
+		}
+	}
+
+	@Override
+	public int read() {
+		ByteBuffer bb = currentBuffer();
+		if (bb == null) {
+			return -1;
+		}
+		position++;
+		return bb.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		ByteBuffer bb = currentBuffer();
+		if (bb == null) {
+			return -1;
+		}
+		int toRead = Math.min(len, bb.remaining());
+		bb.get(b, off, toRead);
+		position += toRead;
+		return toRead;
+	}
+
+	@Override
+	public int available() {
+		ByteBuffer bb = currentBuffer();
+		return bb == null ? 0 : bb.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		mark = position;
+	}
+
+	@Override
+	public synchronized void reset() {
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i].position(starts[i]);
+		}
+		current = 0;
+		position = 0;
+
+		long pending = mark;
+		while (pending > 0) {
+			ByteBuffer bb = currentBuffer();
+			int skip = (int) Math.min(pending, bb.remaining());
+			bb.position(bb.position() + skip);
+			pending -= skip;
+			position += skip;
+		}
+	}
+
+	private ByteBuffer currentBuffer() {
+		while (current < buffers.length && !buffers[current].hasRemaining()) {
+			current++;
+		}
+		return current < buffers.length ? buffers[current] : null;
+	}
+}
@@ -0,0 +1,40 @@
+package cat.altimiras.glacier.backupper;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Two codecs one after the other, like compression and then encryption
+ */
+class ChainCodec implements BlockCodec {
+
+	private final BlockCodec first;
+	private final BlockCodec second;
+
+	ChainCodec(BlockCodec first, BlockCodec second) {
+		this.first = first;
+		this.second = second;
+	}
+
+	@Override
+	public String getName() {
+		return first.getName() + "+" + second.getName();
+	}
+
+	@Override
+	public Item.Encryption getEncryption(SecretKey masterKey) throws Exception {
+		Item.Encryption encryption = first.getEncryption(masterKey);
+		return encryption != null ? encryption : second.getEncryption(masterKey);
+	}
+
+	@Override
+	public byte[] encode(Position position, byte[] block, int length) throws Exception {
+		byte[] encoded = first.encode(position, block, length);
+		return second.encode(position, encoded, encoded.length);
+	}
+
+	@Override
+	public byte[] decode(Position position, byte[] block, int offset, int length) throws Exception {
+		byte[] decoded = second.decode(position, block, offset, length);
+		return first.decode(position, decoded, 0, decoded.length);
+	}
+}
@@ -0,0 +1,107 @@
+package cat.altimiras.glacier.backupper;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the content of a chunk as slices of its own buffers, without copying it.
+ * Every subscription starts from the beginning, so the SDK can retry the request.
+ */
+class ChunkRequestBody implements AsyncRequestBody {
+
+	private static final int SLICE_SIZE = 128 * 1024;
+
+	private final FileChunker.Chunk chunk;
+
+	ChunkRequestBody(FileChunker.Chunk chunk) {
+		this.chunk = chunk;
+	}
+
+	@Override
+	public Optional<Long> contentLength() {
+		return Optional.of(chunk.getLength());
+	}
+
+	@Override
+	public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+		subscriber.onSubscribe(new ChunkSubscription(subscriber, chunk.getContent()));
+	}
+
+	private static class ChunkSubscription implements Subscription {
+
+		private final Subscriber<? super ByteBuffer> subscriber;
+		private final ByteBuffer[] buffers;
+		private final AtomicLong demand = new AtomicLong();
+		private final AtomicInteger draining = new AtomicInteger();
+		private int current;
+		private volatile boolean done;
+
+		ChunkSubscription(Subscriber<? super ByteBuffer> subscriber, ByteBuffer[] content) {
+			this.subscriber = subscriber;
+			this.buffers = new ByteBuffer[content.length];
+			for (int i = 0; i < content.length; i++) {
+				this.buffers[i] = content[i].duplicate();
+			}
+		}
+
+		@Override
+		public void request(long n) {
+			if (done) {
+				return;
+			}
+			if (n <= 0) {
+				done = true;
+				subscriber.onError(new IllegalArgumentException("Demand must be positive"));
+				return;
+			}
+			demand.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			done = true;
+		}
+
+		//only one thread emits at a time, requests done from onNext are served by the loop
+		private void drain() {
+			if (draining.getAndIncrement() != 0) {
+				return;
+			}
+			do {
+				while (!done) {
+					if (!hasRemaining()) {
+						done = true;
+						subscriber.onComplete();
+					} else if (demand.get() > 0) {
+						demand.decrementAndGet();
+						subscriber.onNext(nextSlice());
+					} else {
+						break;
+					}
+				}
+			} while (draining.decrementAndGet() != 0);
+		}
+
+		private boolean hasRemaining() {
+			while (current < buffers.length && !buffers[current].hasRemaining()) {
+				current++;
+			}
+			return current < buffers.length;
+		}
+
+		private ByteBuffer nextSlice() {
+			ByteBuffer buffer = buffers[current];
+			ByteBuffer slice = buffer.slice();
+			slice.limit(Math.min(SLICE_SIZE, buffer.remaining()));
+			buffer.position(buffer.position() + slice.limit());
+			return slice;
+		}
+	}
+}
@@ -11,8 +11,17 @@ import org.apache.commons.cli.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.crypto.SecretKey;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
 
 public class Cmd {
 
@@ -20,11 +29,20 @@ public class Cmd {
 
 	private static Options options = new Options();
 
+	private static final String STDIN = "-";
+
+	private static final String STDOUT = "-";
+
 	static {
 		options.addRequiredOption("i", "inventory", true, "Path to inventory.json");
 		options.addOption("k", "aws-key", true, "AWS key");
 		options.addOption("s", "aws-secret", true, "AWS secret");
 		options.addOption("x", "verbose", false, "Verbose mode");
+		options.addOption("e", "engine", true, "Transfer engine: sync (blocking, a thread per request) or async (non blocking). sync is default");
+		options.addOption("mc", "max-connections", true, "Max connections by region. 50 is default");
+		options.addOption("bw", "bandwidth", true, "Max MB/s of all transfers, by time of day: 08:00-20:00=20,20:00-08:00=100. No limit is default");
+		options.addOption("ek", "encryption-key", true, "File with the master key (32 random bytes) to encrypt uploads and decrypt downloads");
+		options.addOption("ka", "keep-alive", true, "Seconds an idle connection is kept open to be reused. 60 is default");
 
 		OptionGroup operations = new OptionGroup();
 		operations.addOption(new Option("u", "upload", false, "Upload command"));
@@ -33,16 +51,25 @@ public class Cmd {
 		operations.addOption(new Option("ps", "job-status", false, "Job status command"));
 		operations.addOption(new Option("ls", "list", false, "List items command"));
 		operations.addOption(new Option("rm", "remove", false, "Remove item command"));
+		operations.addOption(new Option("vf", "verify", false, "Verify a local file against the tree hash of its upload command"));
 		operations.addOption(new Option("h", "help", false, "Help command"));
 		operations.setRequired(true);
 		options.addOptionGroup(operations);
 
-		options.addOption("f", "file", true, "File to upload");
+		options.addOption("f", "file", true, "File to upload, - to upload stdin. If it is a directory all files inside are uploaded");
+		options.addOption("l", "file-list", true, "File with the paths to upload, one by line");
+		options.addOption("pf", "parallel-files", true, "Number of files uploaded in parallel uploading a directory or a list. 4 is default");
+		options.addOption("pk", "pack", true, "Pack files smaller than a chunk into archives of this size in MB uploading a directory or a list. Disabled by default");
+		options.addOption("z", "compress", false, "Compress blocks of the file in parallel before uploading it");
+		options.addOption("dd", "dedup", false, "Upload only the content not stored yet, cutting files in chunks by its content");
+		options.addOption("mb", "max-in-flight", true, "Max MB of chunks in flight by all files. No limit is default");
 		options.addOption("v", "vault", true, "AWS vault");
 		options.addOption("r", "region", true, "AWS region");
 		options.addOption("n", "name", true, "Name");
-		options.addOption("c", "chunk-size", true, "Chunk size in MB must be power of 2: 2,4,8,16 ...");
-		options.addOption("t", "target", true, "Target download");
+		options.addOption("c", "chunk-size", true, "Chunk size in MB must be power of 2: 2,4,8,16 ... 16 is default, increased if file needs more than 10000 chunks");
+		options.addOption("p", "parallel", true, "Number of chunks uploaded or downloaded in parallel. 1 is default");
+		options.addOption("at", "autotune", false, "Tune chunks in parallel from the measured throughput, starting from -p");
+		options.addOption("t", "target", true, "Target download, - to write it to stdout");
 		options.addOption("nr", "no-remove", false, "Keep job into the inventory");
 		options.addOption("u", "urgent", false, "Work in 'Standard' Glacier mode. 'Bulk' is default");
 	}
@@ -54,49 +81,110 @@ public class Cmd {
 
 		boolean verbose = line.hasOption("x");
 
+		if (line.hasOption("d") && STDOUT.equals(line.getOptionValue("t"))) {
+			//stdout carries the download, logs are routed to stderr
+			System.setProperty("glacier.stdout", "data");
+		}
+
 		try {
 			Path inventoryPath = Paths.get(line.getOptionValue("i"));
 			String awsKey = line.getOptionValue("k");
 			String awsSecret = line.getOptionValue("s");
 
-			GlacierBackupper glacierBackupper = new GlacierBackupper(inventoryPath, awsKey, awsSecret);
-
-			if (line.hasOption("u")) { //upload
-				validateUpload(line);
-				glacierBackupper.upload(
-						line.getOptionValue("n"),
-						line.getOptionValue("v"),
-						line.getOptionValue("r"),
-						Paths.get(line.getOptionValue("f")),
-						Integer.valueOf(line.getOptionValue("c", "0")) * 1024 * 1024
-				);
-
-			} else if (line.hasOption("d")) { //download
-				validateDownload(line);
-				glacierBackupper.download(
-						line.getOptionValue("n"),
-						Paths.get(line.getOptionValue("t")),
-						Integer.valueOf(line.getOptionValue("c", "0")) * 1024 * 1024,
-						line.hasOption("nr")
-				);
-
-			} else if (line.hasOption("rd")) { //request download
-				validateName(line);
-				glacierBackupper.createDownloadJob(
-						line.getOptionValue("n"),
-						line.hasOption("u")
-				);
-			} else if (line.hasOption("ps")) { //status jobs
-				glacierBackupper.jobStatus();
-			} else if (line.hasOption("ls")) { // list items
-				glacierBackupper.list();
-			} else if (line.hasOption("rm")) {
-				validateName(line);
-				glacierBackupper.remove(
-						line.getOptionValue("n")
-				);
-			} else if (line.hasOption("h")){
-				printHelp();
+			boolean asyncEngine = "async".equals(line.getOptionValue("e", "sync"));
+			int maxConnections = Integer.valueOf(line.getOptionValue("mc", "50"));
+			Duration keepAlive = Duration.ofSeconds(Long.valueOf(line.getOptionValue("ka", "60")));
+			long maxInFlight = Long.valueOf(line.getOptionValue("mb", "0")) * 1024 * 1024;
+			BandwidthLimiter bandwidth = line.hasOption("bw") ? BandwidthLimiter.parse(line.getOptionValue("bw")) : null;
+			SecretKey masterKey = line.hasOption("ek") ? AesGcmCodec.readKey(Paths.get(line.getOptionValue("ek"))) : null;
+
+			try (GlacierBackupper glacierBackupper = new GlacierBackupper(inventoryPath, awsKey, awsSecret, asyncEngine, maxConnections, keepAlive, maxInFlight, bandwidth, masterKey)) {
+				if (line.hasOption("u")) { //upload
+					validateUpload(line);
+					if (line.hasOption("l") || Files.isDirectory(Paths.get(line.getOptionValue("f")))) {
+						glacierBackupper.upload(
+								line.getOptionValue("v"),
+								line.getOptionValue("r"),
+								line.hasOption("l") ? listFiles(Paths.get(line.getOptionValue("l"))) : walkFiles(Paths.get(line.getOptionValue("f"))),
+								Long.valueOf(line.getOptionValue("c", "0")) * 1024 * 1024,
+								Integer.valueOf(line.getOptionValue("p", "1")),
+								line.hasOption("at"),
+								Integer.valueOf(line.getOptionValue("pf", "4")),
+								Long.valueOf(line.getOptionValue("pk", "0")) * 1024 * 1024,
+								line.hasOption("dd"),
+								line.hasOption("z")
+						);
+					} else if (STDIN.equals(line.getOptionValue("f"))) {
+						glacierBackupper.upload(
+								line.getOptionValue("n"),
+								line.getOptionValue("v"),
+								line.getOptionValue("r"),
+								System.in,
+								Long.valueOf(line.getOptionValue("c", "0")) * 1024 * 1024,
+								Integer.valueOf(line.getOptionValue("p", "1")),
+								line.hasOption("at"),
+								line.hasOption("z")
+						);
+					} else {
+						glacierBackupper.upload(
+								line.getOptionValue("n"),
+								line.getOptionValue("v"),
+								line.getOptionValue("r"),
+								Paths.get(line.getOptionValue("f")),
+								Long.valueOf(line.getOptionValue("c", "0")) * 1024 * 1024,
+								Integer.valueOf(line.getOptionValue("p", "1")),
+								line.hasOption("at"),
+								line.hasOption("dd"),
+								line.hasOption("z")
+						);
+					}
+
+				} else if (line.hasOption("d")) { //download
+					validateDownload(line);
+					if (STDOUT.equals(line.getOptionValue("t"))) {
+						glacierBackupper.download(
+								line.getOptionValue("n"),
+								new FileOutputStream(FileDescriptor.out).getChannel(),
+								Long.valueOf(line.getOptionValue("c", "0")) * 1024 * 1024,
+								Integer.valueOf(line.getOptionValue("p", "1")),
+								line.hasOption("at"),
+								line.hasOption("nr")
+						);
+					} else {
+						glacierBackupper.download(
+								line.getOptionValue("n"),
+								Paths.get(line.getOptionValue("t")),
+								Long.valueOf(line.getOptionValue("c", "0")) * 1024 * 1024,
+								Integer.valueOf(line.getOptionValue("p", "1")),
+								line.hasOption("at"),
+								line.hasOption("nr")
+						);
+					}
+
+				} else if (line.hasOption("rd")) { //request download
+					validateName(line);
+					glacierBackupper.createDownloadJob(
+							line.getOptionValue("n"),
+							line.hasOption("u")
+					);
+				} else if (line.hasOption("ps")) { //status jobs
+					glacierBackupper.jobStatus();
+				} else if (line.hasOption("ls")) { // list items
+					glacierBackupper.list();
+				} else if (line.hasOption("rm")) {
+					validateName(line);
+					glacierBackupper.remove(
+							line.getOptionValue("n")
+					);
+				} else if (line.hasOption("vf")) {
+					validateVerify(line);
+					glacierBackupper.verify(
+							line.getOptionValue("n"),
+							Paths.get(line.getOptionValue("f"))
+					);
+				} else if (line.hasOption("h")){
+					printHelp();
+				}
 			}
 		} catch (Exception e) {
 			if (verbose) {
@@ -124,9 +212,45 @@ public class Cmd {
 		helpFormatter.printHelp("java -jar GlacierBackupper-1.0.jar ", options, true);
 	}
 
+	/**
+	 * Regular files inside the directory, named by its path relative to the directory
+	 */
+	private static Map<String, Path> walkFiles(Path dir) throws IOException {
+		Map<String, Path> files = new LinkedHashMap<>();
+		try (Stream<Path> paths = Files.walk(dir)) {
+			paths.filter(Files::isRegularFile)
+					.sorted()
+					.forEach(p -> files.put(dir.relativize(p).toString().replace('\\', '/'), p));
+		}
+		return files;
+	}
+
+	/**
+	 * Files listed one by line, named by its path as written. Empty lines and lines starting with # are ignored,
+	 * a path listed twice is uploaded once
+	 */
+	static Map<String, Path> listFiles(Path list) throws IOException {
+		Map<String, Path> files = new LinkedHashMap<>();
+		for (String l : Files.readAllLines(list)) {
+			l = l.trim();
+			if (!l.isEmpty() && !l.startsWith("#")) {
+				Path p = Paths.get(l).normalize();
+				String name = p.toString().replace('\\', '/');
+				if (files.putIfAbsent(name, p) != null) {
+					logger.info("File {} is listed more than once, it is uploaded once", name);
+				}
+			}
+		}
+		return files;
+	}
+
 	private static void validateUpload(CommandLine line){
-		if (!line.hasOption("f") || !line.hasOption("v") || !line.hasOption("r") ) {
-			logger.error("-f <file to upload> -r <aws region> -v <vault> are required");
+		if ((!line.hasOption("f") && !line.hasOption("l")) || !line.hasOption("v") || !line.hasOption("r") ) {
+			logger.error("-f <file to upload> or -l <file list> -r <aws region> -v <vault> are required");
+			System.exit(1);
+		}
+		if (STDIN.equals(line.getOptionValue("f")) && !line.hasOption("n")) {
+			logger.error("-n <name> is required to upload stdin");
 			System.exit(1);
 		}
 
@@ -139,6 +263,13 @@ public class Cmd {
 		}
 	}
 
+	private static void validateVerify(CommandLine line){
+		if (!line.hasOption("n") || !line.hasOption("f")) {
+			logger.error("-n <name> -f <local file>");
+			System.exit(1);
+		}
+	}
+
 	private static void validateName(CommandLine line){
 		if (!line.hasOption("n") ) {
 			logger.error("-n <file to download>");
@@ -0,0 +1,100 @@
+package cat.altimiras.glacier.backupper;
+
+import software.amazon.awssdk.utils.BinaryUtils;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Cuts a file where its content says so (a rolling gear hash), not at fixed offsets. A change only moves the cuts
+ * around it, so the rest of chunks are the same than the ones of previous versions of the file and are not uploaded again
+ */
+class ContentChunker {
+
+	static final int MIN_SIZE = 256 * 1024;
+
+	static final int MAX_SIZE = 4 * 1024 * 1024;
+
+	//20 bits, 1MB chunks on average. High bits depend on the last 64 bytes read
+	private static final long MASK = ((1L << 20) - 1) << 44;
+
+	private static final int BUFFER = 8 * 1024 * 1024;
+
+	//fixed seed, cuts must be the same on every run
+	private static final long[] GEAR = new long[256];
+
+	static {
+		Random random = new Random(0x676c6163696572L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	/**
+	 * Cuts of the file, the whole content is given to the hasher on the way
+	 */
+	static List<Cut> cut(Path file, TreeHasher content) throws Exception {
+		List<Cut> cuts = new ArrayList<>();
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		byte[] buffer = new byte[BUFFER];
+
+		try (InputStream input = Files.newInputStream(file)) {
+			long start = 0;
+			long pos = 0;
+			long hash = 0;
+			int read;
+			while ((read = input.read(buffer)) > 0) {
+				content.update(buffer, 0, read);
+				int from = 0;
+				for (int i = 0; i < read; i++) {
+					hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+					long length = pos + i + 1 - start;
+					if ((length >= MIN_SIZE && (hash & MASK) == 0) || length >= MAX_SIZE) {
+						md.update(buffer, from, i + 1 - from);
+						cuts.add(new Cut(start, length, BinaryUtils.toHex(md.digest())));
+						start += length;
+						from = i + 1;
+						hash = 0;
+					}
+				}
+				md.update(buffer, from, read - from);
+				pos += read;
+			}
+			if (pos > start) {
+				cuts.add(new Cut(start, pos - start, BinaryUtils.toHex(md.digest())));
+			}
+		}
+		return cuts;
+	}
+
+	static class Cut {
+
+		private final long start;
+		private final long length;
+		//SHA-256 of the content
+		private final String hash;
+
+		Cut(long start, long length, String hash) {
+			this.start = start;
+			this.length = length;
+			this.hash = hash;
+		}
+
+		public long getStart() {
+			return start;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+	}
+}
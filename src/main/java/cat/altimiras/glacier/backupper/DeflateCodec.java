@@ -0,0 +1,70 @@
+package cat.altimiras.glacier.backupper;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression. Blocks that do not get smaller (already compressed data) are stored as they are
+ */
+class DeflateCodec implements BlockCodec {
+
+	static final String NAME = "deflate";
+
+	private static final byte STORED = 0;
+	private static final byte DEFLATED = 1;
+
+	//deflater and inflater keep native memory, one by thread instead of one by block
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION));
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public byte[] encode(Position position, byte[] block, int length) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(block, 0, length);
+		deflater.finish();
+
+		byte[] encoded = new byte[length + 1];
+		encoded[0] = DEFLATED;
+		int size = 1;
+		while (!deflater.finished() && size < encoded.length) {
+			size += deflater.deflate(encoded, size, encoded.length - size);
+		}
+		if (!deflater.finished()) {
+			encoded[0] = STORED;
+			System.arraycopy(block, 0, encoded, 1, length);
+			return encoded;
+		}
+		return Arrays.copyOf(encoded, size);
+	}
+
+	@Override
+	public byte[] decode(Position position, byte[] block, int offset, int length) throws DataFormatException {
+		int logicalLength = position.getLogicalLength();
+		byte[] decoded = new byte[logicalLength];
+		if (block[offset] == STORED) {
+			System.arraycopy(block, offset + 1, decoded, 0, logicalLength);
+			return decoded;
+		}
+
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(block, offset + 1, length - 1);
+		int size = 0;
+		while (size < logicalLength && !inflater.finished()) {
+			int n = inflater.inflate(decoded, size, logicalLength - size);
+			if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+				throw new DataFormatException("Block " + position.getIndex() + " is truncated");
+			}
+			size += n;
+		}
+		return decoded;
+	}
+}
@@ -0,0 +1,192 @@
+package cat.altimiras.glacier.backupper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Ranges of a download already written to the target, with their tree hash, kept in a file next to the target
+ * so an interrupted download continues where it was. Removed once the download is completed.
+ * The file has a header and a slot of fixed size by range, a range done writes its own slot in place. A slot half
+ * written by a crash does not match its checksum and the range is downloaded again
+ */
+class DownloadProgress implements Closeable {
+
+	//"GBDP"
+	private static final int MAGIC = 0x47424450;
+
+	private static final int VERSION = 2;
+
+	private static final int HASH = 32;
+
+	//checksum, state and tree hash
+	private static final int SLOT = 4 + 1 + HASH;
+
+	private static final byte DONE = 1;
+	private static final byte DONE_WITH_HASH = 2;
+
+	private final Path path;
+	private final int ranges;
+	private final BitSet done;
+	//tree hash of every range done, when it was computed
+	private final byte[][] treeHashes;
+	private final FileChannel output;
+	private final FileChannel slots;
+	private final long header;
+
+	private DownloadProgress(Path path, int ranges, BitSet done, byte[][] treeHashes, FileChannel output, FileChannel slots, long header) {
+		this.path = path;
+		this.ranges = ranges;
+		this.done = done;
+		this.treeHashes = treeHashes;
+		this.output = output;
+		this.slots = slots;
+		this.header = header;
+	}
+
+	/**
+	 * Progress of a previous download of the same ranges to the target, or a new one.
+	 * The key identifies the download: jobs, range size and number of ranges
+	 */
+	static DownloadProgress open(Path target, FileChannel output, String key, int ranges) throws IOException {
+		Path path = target.resolveSibling(target.getFileName() + ".progress");
+		byte[] header = header(key, ranges);
+		long size = header.length + (long) ranges * SLOT;
+		BitSet done = new BitSet(ranges);
+		byte[][] treeHashes = new byte[ranges][];
+
+		FileChannel slots = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			if (slots.size() == size && Arrays.equals(read(slots, 0, header.length), header)) {
+				ByteBuffer content = ByteBuffer.wrap(read(slots, header.length, (int) (size - header.length)));
+				for (int i = 0; i < ranges; i++) {
+					byte[] slot = new byte[SLOT];
+					content.get(slot);
+					if (slot[4] != 0 && ByteBuffer.wrap(slot).getInt() == checksum(i, slot)) {
+						done.set(i);
+						if (slot[4] == DONE_WITH_HASH) {
+							treeHashes[i] = Arrays.copyOfRange(slot, 5, SLOT);
+						}
+					}
+				}
+			} else {
+				//other download or unreadable progress, download starts again
+				slots.truncate(0);
+				write(slots, ByteBuffer.wrap(header), 0);
+				if (ranges > 0) {
+					//slots are read as zeros till written, not done
+					write(slots, ByteBuffer.allocate(1), size - 1);
+				}
+			}
+		} catch (IOException e) {
+			slots.close();
+			throw e;
+		}
+		return new DownloadProgress(path, ranges, done, treeHashes, output, slots, header.length);
+	}
+
+	private static byte[] header(String key, int ranges) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(key);
+			out.writeInt(ranges);
+		}
+		return bytes.toByteArray();
+	}
+
+	//range index is in the checksum, a slot is not valid at other position
+	private static int checksum(int range, byte[] slot) {
+		CRC32 crc = new CRC32();
+		crc.update(ByteBuffer.allocate(4).putInt(range).array());
+		crc.update(slot, 4, SLOT - 4);
+		return (int) crc.getValue();
+	}
+
+	private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				break;
+			}
+		}
+		return buffer.array();
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	boolean isDone(int range) {
+		synchronized (done) {
+			return done.get(range);
+		}
+	}
+
+	int pending() {
+		synchronized (done) {
+			return ranges - done.cardinality();
+		}
+	}
+
+	/**
+	 * Tree hashes of all ranges in order, null if any of them was not computed
+	 */
+	List<byte[]> treeHashes() {
+		synchronized (done) {
+			List<byte[]> hashes = new ArrayList<>();
+			for (byte[] treeHash : treeHashes) {
+				if (treeHash == null) {
+					return null;
+				}
+				hashes.add(treeHash);
+			}
+			return hashes;
+		}
+	}
+
+	/**
+	 * The range is flushed to disk before it is recorded, a recorded range is never downloaded again
+	 */
+	void done(int range, byte[] treeHash) throws IOException {
+		output.force(false);
+		byte[] slot = new byte[SLOT];
+		if (treeHash != null && treeHash.length == HASH) {
+			slot[4] = DONE_WITH_HASH;
+			System.arraycopy(treeHash, 0, slot, 5, HASH);
+		} else {
+			slot[4] = DONE;
+			treeHash = null;
+		}
+		ByteBuffer.wrap(slot).putInt(checksum(range, slot));
+		write(slots, ByteBuffer.wrap(slot), header + (long) range * SLOT);
+		synchronized (done) {
+			done.set(range);
+			treeHashes[range] = treeHash;
+		}
+	}
+
+	void completed() throws IOException {
+		close();
+		Files.deleteIfExists(path);
+	}
+
+	@Override
+	public void close() throws IOException {
+		slots.close();
+	}
+}
@@ -1,38 +1,82 @@
 package cat.altimiras.glacier.backupper;
 
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
-import java.security.MessageDigest;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class FileChunker {
 
 	private static int ONE_MB = 1024*1024;
 
+	//biggest region mapped or buffered at once, bigger parts (2GB, 4GB) are split in several windows
+	static long MAX_WINDOW = 1024L * ONE_MB;
 
-	public static PartIterator partitionate(Path file, int partSize) {
-		return new PartIterator(file.toFile(), partSize);
-	}
+	private static final int MIN_WINDOW = 64 * 1024;
+
+	//bytes kept by the pool of each window size once released, at least one window
+	private static final long MAX_POOLED = 256L * ONE_MB;
 
-	public static class PartIterator implements Iterator<Chunk> {
+	//windows of all the parts being read, by capacity
+	private static final Map<Integer, BufferPool> windows = new ConcurrentHashMap<>();
+
+	public static PartIterator partitionate(Path file, long partSize) throws Exception {
+		return new PartIterator(FileChannel.open(file, StandardOpenOption.READ), partSize);
+	}
 
-		private long size;
-		private File file;
-		private int partSize;
+	/**
+	 * Iterates the parts of a file keeping one channel open for the whole iteration, must be closed when finished.
+	 * Parts are read into direct buffers shared with the other iterators and reused once the part is released, only
+	 * parts in flight are kept in memory.
+	 */
+	public static class PartIterator implements PartSource {
+
+		private final FileChannel channel;
+		private final TreeHasher hasher = new TreeHasher();
+		private final long size;
+		private long partSize;
 		private long currentPos;
 
-		public PartIterator(File file, int partSize) {
-			this.file = file;
+		public PartIterator(FileChannel channel, long partSize) throws Exception {
+			this.channel = channel;
 			this.partSize = partSize;
-			this.size = file.length();
+			this.size = channel.size();
 		}
 
+		@Override
 		public long getExpectedChunks() {
-			return Double.valueOf(Math.ceil(size / partSize)).longValue();
+			return (size + partSize - 1) / partSize;
+		}
+
+		@Override
+		public long getPartSize() {
+			return partSize;
+		}
+
+		/**
+		 * Part size can be changed till the first part is read,
+		 * for example to resume an upload with the part size it was started with
+		 */
+		public void setPartSize(long partSize) {
+			if (currentPos > 0) {
+				throw new IllegalStateException("Part size can not be changed once parts has been read");
+			}
+			this.partSize = partSize;
+		}
+
+		@Override
+		public long getPosition() {
+			return currentPos;
+		}
+
+		@Override
+		public long getSize() {
+			return size;
 		}
 
 		@Override
@@ -42,56 +86,139 @@ public class FileChunker {
 
 		@Override
 		public Chunk next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
 
-			try (FileInputStream fis = new FileInputStream(file)) {
+			try {
+				long toRead = Math.min(size - currentPos, partSize);
 
-				MessageDigest md = MessageDigest.getInstance("SHA-256");
+				ByteBuffer[] content = read(currentPos, toRead);
+				Chunk chunk = new Chunk(currentPos, toRead, content, checksum(hasher, content), () -> release(content));
 
-				long pending = size - currentPos;
-				long toRead = Math.min(pending, partSize);
+				currentPos += toRead;
+				return chunk;
+			} catch (Exception e) {
+				throw new IllegalStateException("Unable to read chunk at " + currentPos, e);
+			}
+		}
 
-				ByteBuffer bb = ByteBuffer.allocate((int) toRead);
-				fis.getChannel().read(bb, currentPos);
+		/**
+		 * Moves to the next part without reading it
+		 */
+		@Override
+		public void skip() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			currentPos += Math.min(size - currentPos, partSize);
+		}
 
-				//calculate checksum
-				//https://docs.aws.amazon.com/amazonglacier/latest/dev/checksum-calculations.html
-				List<byte[]> checksums = new ArrayList<>();
-				int processedChecksum = 0;
-				while ( processedChecksum < toRead){
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
 
-					long pendingBatchChecksum = toRead - processedChecksum;
-					int checksumBatch = (int)Math.min(pendingBatchChecksum, ONE_MB);
-					md.update(bb.array(), processedChecksum, checksumBatch);
-					checksums.add( md.digest());
-					processedChecksum+= checksumBatch;
+		private ByteBuffer[] read(long start, long length) throws IOException {
+			ByteBuffer[] content = buffers(length);
+			long position = start;
+			for (ByteBuffer window : content) {
+				while (window.hasRemaining()) {
+					int read = channel.read(window, position);
+					if (read < 0) {
+						throw new IOException("File is shorter than " + size + " bytes, it changed while uploading");
+					}
+					position += read;
 				}
+				window.flip();
+			}
+			return content;
+		}
 
-				Chunk chunk = new Chunk(currentPos, bb.array(), Hash.calculateTreeHash(checksums));
+	}
 
-				currentPos += toRead;
-				return chunk;
-			} catch (Exception e) {
-				return null;
+	/**
+	 * Buffers for the bytes of a part, shared by every iterator and reused once released. Windows are sized by the
+	 * bytes read, rounded up to a power of 2, so a small file does not take a buffer of the part size
+	 */
+	static ByteBuffer[] buffers(long length) {
+		int count = (int) Math.max(1, (length + MAX_WINDOW - 1) / MAX_WINDOW);
+		ByteBuffer[] content = new ByteBuffer[count];
+		long remaining = length;
+		for (int i = 0; i < count; i++) {
+			int size = (int) Math.min(MAX_WINDOW, remaining);
+			content[i] = windows.computeIfAbsent(capacity(size), c -> new BufferPool(c, (int) Math.max(1, MAX_POOLED / c))).acquire();
+			content[i].limit(size);
+			remaining -= size;
+		}
+		return content;
+	}
+
+	static void release(ByteBuffer[] content) {
+		for (ByteBuffer window : content) {
+			BufferPool pool = windows.get(window.capacity());
+			if (pool != null) {
+				pool.release(window);
 			}
 		}
 	}
 
+	private static int capacity(int size) {
+		if (size <= MIN_WINDOW) {
+			return MIN_WINDOW;
+		}
+		return (int) Math.min(MAX_WINDOW, Integer.highestOneBit(size - 1) << 1);
+	}
+
+	//calculate checksum
+	//https://docs.aws.amazon.com/amazonglacier/latest/dev/checksum-calculations.html
+	static byte[] checksum(TreeHasher hasher, ByteBuffer[] content) {
+		for (ByteBuffer window : content) {
+			hasher.update(window);
+		}
+		return hasher.digest();
+	}
+
 	public static class Chunk {
 
 		private long start;
-		private byte[] content;
+		private long length;
+		private ByteBuffer[] content;
 		private byte[] checksum;
+		private Runnable onRelease;
 
-		public Chunk(long start, byte[] content, byte[] checksum) {
+		public Chunk(long start, long length, ByteBuffer[] content, byte[] checksum) {
+			this(start, length, content, checksum, null);
+		}
+
+		public Chunk(long start, long length, ByteBuffer[] content, byte[] checksum, Runnable onRelease) {
 			this.start = start;
+			this.length = length;
 			this.content = content;
 			this.checksum = checksum;
+			this.onRelease = onRelease;
 		}
 
-		public byte[] getContent() {
+		/**
+		 * Gives back the content once uploaded, it must not be used after
+		 */
+		public void release() {
+			if (onRelease != null) {
+				onRelease.run();
+			}
+		}
+
+		public ByteBuffer[] getContent() {
 			return content;
 		}
 
+		/**
+		 * Stream over the content without copying it, can be reset to be read again on retries
+		 */
+		public InputStream getInputStream() {
+			return new ByteBufferInputStream(content);
+		}
+
 		public byte[]  getChecksum() {
 			return checksum;
 		}
@@ -99,5 +226,9 @@ public class FileChunker {
 		public long getStart() {
 			return start;
 		}
+
+		public long getLength() {
+			return length;
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,156 @@
+package cat.altimiras.glacier.backupper;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.utils.BinaryUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fingerprint of a file is the SHA-256 tree hash of its whole content. Fingerprints already computed are kept by path
+ * in a file, a file with the same size, modification time and inode is not read again. An upload computes it from the
+ * same read that sends the file and puts it here once uploaded
+ */
+class FingerprintCache {
+
+	final static Logger logger = LoggerFactory.getLogger(FingerprintCache.class);
+
+	//a file modified this close to when it is read could change again without changing its modification time
+	private static final long RACY_MILLIS = 2000;
+
+	private final ObjectMapper objectMapper;
+	private final Path path;
+	private final Path tmp;
+	private final Map<String, Entry> entries;
+	private volatile boolean changed;
+
+	FingerprintCache(Path path) {
+		this.objectMapper = new ObjectMapper();
+		this.objectMapper.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE);
+		this.objectMapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+		this.path = path;
+		this.tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		this.entries = read();
+	}
+
+	/**
+	 * Fingerprint of the file, read only when it is not cached
+	 */
+	String fingerprint(Path file) throws Exception {
+		Stat stat = stat(file);
+		String fingerprint = cached(stat);
+		if (fingerprint == null) {
+			fingerprint = BinaryUtils.toHex(TreeHash.computeSHA256TreeHash(file.toFile()));
+			put(stat, fingerprint);
+		}
+		return fingerprint;
+	}
+
+	/**
+	 * Version of the file to look for its fingerprint, taken before its content is read
+	 */
+	Stat stat(Path file) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		return new Stat(file.toAbsolutePath().normalize().toString(), attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+				String.valueOf(attributes.fileKey()), System.currentTimeMillis());
+	}
+
+	/**
+	 * Fingerprint computed for the same version of the file, null when the file has not been read or it has changed
+	 */
+	String cached(Stat stat) {
+		Entry cached = entries.get(stat.key);
+		if (cached != null && cached.size == stat.size && cached.modified == stat.modified && cached.inode.equals(stat.inode)) {
+			return cached.fingerprint;
+		}
+		return null;
+	}
+
+	/**
+	 * Fingerprint of the content read after the stat, it is not kept if the file was modified just before
+	 */
+	void put(Stat stat, String fingerprint) {
+		if (stat.read - TimeUnit.NANOSECONDS.toMillis(stat.modified) > RACY_MILLIS) {
+			entries.put(stat.key, new Entry(stat.size, stat.modified, stat.inode, fingerprint));
+			changed = true;
+		}
+	}
+
+	/**
+	 * Writes the fingerprints computed since the last time, replacing the file at once
+	 */
+	synchronized void store() throws IOException {
+		if (!changed) {
+			return;
+		}
+		changed = false;
+		Files.write(tmp, objectMapper.writeValueAsBytes(entries));
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private Map<String, Entry> read() {
+		if (Files.exists(path)) {
+			try {
+				return objectMapper.readValue(Files.readAllBytes(path), new TypeReference<ConcurrentHashMap<String, Entry>>() {
+				});
+			} catch (IOException e) {
+				logger.info("Fingerprints of {} can not be read, files will be read again: {}", path, e.getMessage());
+			}
+		}
+		return new ConcurrentHashMap<>();
+	}
+
+	static class Stat {
+
+		private final String key;
+		private final long size;
+		private final long modified;
+		private final String inode;
+		//when it was taken
+		private final long read;
+
+		Stat(String key, long size, long modified, String inode, long read) {
+			this.key = key;
+			this.size = size;
+			this.modified = modified;
+			this.inode = inode;
+			this.read = read;
+		}
+
+		/**
+		 * Identifies this version of the file while its fingerprint is not known, for example to resume its upload
+		 */
+		String getVersion() {
+			return key + ":" + size + ":" + modified + ":" + inode;
+		}
+	}
+
+	private static class Entry {
+
+		private long size;
+		private long modified;
+		private String inode;
+		private String fingerprint;
+
+		public Entry() {
+		}
+
+		Entry(long size, long modified, String inode, String fingerprint) {
+			this.size = size;
+			this.modified = modified;
+			this.inode = inode;
+			this.fingerprint = fingerprint;
+		}
+	}
+}
@@ -3,61 +3,454 @@ package cat.altimiras.glacier.backupper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.services.glacier.model.StatusCode;
+import software.amazon.awssdk.utils.BinaryUtils;
 
-import javax.xml.bind.DatatypeConverter;
+import javax.crypto.SecretKey;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
 import java.text.Normalizer;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
-class GlacierBackupper {
+class GlacierBackupper implements AutoCloseable {
 
 	final static Logger logger = LoggerFactory.getLogger(GlacierBackupper.class);
 
+	//uploaded items are added to the inventory in batches of this size
+	private static final int BATCH_SIZE = 100;
+
 	private InventoryManager inventoryManager;
 	private GlacierManager glacierManager;
+	//archives are encrypted when there is a master key
+	private final SecretKey masterKey;
+
+	//fingerprints of files already read, not read again while they do not change
+	private final FingerprintCache fingerprints;
+
+	//checksums of files being uploaded, to not upload twice same content found with other names
+	private final Set<String> uploading = ConcurrentHashMap.newKeySet();
+
+	private final GlacierManager.UploadCheckpoint inventoryCheckpoint = new GlacierManager.UploadCheckpoint() {
+		@Override
+		public void started(PendingUpload upload) throws Exception {
+			inventoryManager.addUpload(upload);
+		}
+
+		@Override
+		public void partUploaded(PendingUpload upload, PendingUpload.Part part) throws Exception {
+			inventoryManager.markPartUploaded(upload, part);
+		}
+	};
+
+	private final GlacierManager.UploadCheckpoint noCheckpoint = new GlacierManager.UploadCheckpoint() {
+		@Override
+		public void started(PendingUpload upload) {
+		}
+
+		@Override
+		public void partUploaded(PendingUpload upload, PendingUpload.Part part) {
+		}
+	};
 
-	GlacierBackupper(Path inventoryPath, String awsKey, String awsSecret) throws Exception {
+	GlacierBackupper(Path inventoryPath, String awsKey, String awsSecret, boolean asyncEngine, int maxConnections, Duration keepAlive, long maxInFlight, BandwidthLimiter bandwidth, SecretKey masterKey) throws Exception {
 		Objects.requireNonNull(inventoryPath);
 
+		this.masterKey = masterKey;
 		inventoryManager = new InventoryManagerJson(inventoryPath);
-		glacierManager = new GlacierManager(awsKey, awsSecret);
+		fingerprints = new FingerprintCache(inventoryPath.resolveSibling(inventoryPath.getFileName() + ".fingerprints"));
+		glacierManager = new GlacierManager(awsKey, awsSecret, asyncEngine, maxConnections, keepAlive, maxInFlight, bandwidth);
 	}
 
-	void upload(String name, String vault, String region, Path path, int chunkSize) throws Exception {
+	void upload(String name, String vault, String region, Path path, long chunkSize, int parallel, boolean autotune, boolean dedup, boolean compress) throws Exception {
 		Objects.requireNonNull(path);
 		if (!Files.exists(path)) {
 			logger.error("File do not exist!");
 		}
 
 		name = normalize(get("File Name", name, path.getFileName().toString()));
+		validateEncryption(false, dedup);
 
-		String checksum = calculateChecksum(path);
-		Optional<Item> exist = inventoryManager.findItemByChecksum(checksum);
-		if (exist.isPresent()) {
-			logger.info("File has been already uploaded previously: {}", exist.get());
-		} else {
-			String archiveId = glacierManager.upload(name, path, region, vault, chunkSize);
-			logger.info("File: {} uploaded successfully with name: {} and id: {}", path, name, archiveId);
-			inventoryManager.addItem(new Item(name, checksum, archiveId, path.toFile().length(), vault, region));
+		Optional<Uploaded> uploaded = uploadFile(name, vault, region, path, chunkSize, parallel, autotune, dedup, compress);
+		if (uploaded.isPresent()) {
+			inventoryManager.addUploadedItems(Collections.singletonList(uploaded.get().item), uploaded.get().completed());
+			logger.info("Inventory updated");
+		}
+	}
+
+	/**
+	 * Uploads all files at the same time, as many as parallelFiles, sharing the transfer engine.
+	 * Files smaller than a chunk are packed together into archives of packSize, 0 to upload every file on its own.
+	 * Uploaded items are added to the inventory in batches
+	 */
+	void upload(String vault, String region, Map<String, Path> files, long chunkSize, int parallel, boolean autotune, int parallelFiles, long packSize, boolean dedup, boolean compress) throws Exception {
+		validateEncryption(packSize > 0, dedup);
+		ExecutorService scheduler = Executors.newFixedThreadPool(Math.max(1, parallelFiles));
+		List<Uploaded> batch = new ArrayList<>();
+		AtomicInteger uploadedFiles = new AtomicInteger();
+		AtomicInteger failedFiles = new AtomicInteger();
+		try {
+			List<Future<?>> tasks = new ArrayList<>();
+			List<Map.Entry<String, Path>> pack = new ArrayList<>();
+			long packed = 0;
+			for (Map.Entry<String, Path> file : files.entrySet()) {
+				long size = Files.size(file.getValue());
+				if (packSize > 0 && size > 0 && size < glacierManager.chunkSize(chunkSize)) {
+					pack.add(file);
+					packed += size;
+					if (packed >= packSize) {
+						tasks.add(submitPack(scheduler, pack, vault, region, chunkSize, parallel, autotune, batch, uploadedFiles, failedFiles));
+						pack = new ArrayList<>();
+						packed = 0;
+					}
+					continue;
+				}
+				tasks.add(scheduler.submit(() -> {
+					try {
+						Optional<Uploaded> uploaded = uploadFile(normalize(file.getKey()), vault, region, file.getValue(), chunkSize, parallel, autotune, dedup, compress);
+						if (uploaded.isPresent()) {
+							uploadedFiles.incrementAndGet();
+							commit(batch, Collections.singletonList(uploaded.get()), BATCH_SIZE);
+						}
+					} catch (Exception e) {
+						failedFiles.incrementAndGet();
+						logger.error("File: {} could not be uploaded: {}", file.getValue(), e.getMessage());
+					}
+				}));
+			}
+			if (!pack.isEmpty()) {
+				tasks.add(submitPack(scheduler, pack, vault, region, chunkSize, parallel, autotune, batch, uploadedFiles, failedFiles));
+			}
+			for (Future<?> task : tasks) {
+				task.get();
+			}
+		} finally {
+			scheduler.shutdownNow();
+			commit(batch, Collections.emptyList(), 1);
+		}
+		logger.info("Files: {}, uploaded: {}, failed: {}, already uploaded: {}", files.size(), uploadedFiles.get(), failedFiles.get(), files.size() - uploadedFiles.get() - failedFiles.get());
+	}
+
+	private Future<?> submitPack(ExecutorService scheduler, List<Map.Entry<String, Path>> files, String vault, String region, long chunkSize, int parallel, boolean autotune,
+	                             List<Uploaded> batch, AtomicInteger uploadedFiles, AtomicInteger failedFiles) {
+		return scheduler.submit(() -> {
+			try {
+				List<Uploaded> uploaded = uploadPack(files, vault, region, chunkSize, parallel, autotune);
+				uploadedFiles.addAndGet(uploaded.size());
+				commit(batch, uploaded, BATCH_SIZE);
+			} catch (Exception e) {
+				failedFiles.addAndGet(files.size());
+				logger.error("Pack of {} files starting with: {} could not be uploaded: {}", files.size(), files.get(0).getValue(), e.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * Uploads the files not uploaded before one after the other as a single archive, each one is an item with its offset inside it
+	 */
+	private List<Uploaded> uploadPack(List<Map.Entry<String, Path>> files, String vault, String region, long chunkSize, int parallel, boolean autotune) throws Exception {
+		List<String> names = new ArrayList<>();
+		List<String> checksums = new ArrayList<>();
+		List<Path> paths = new ArrayList<>();
+		long size = 0;
+		try {
+			for (Map.Entry<String, Path> file : files) {
+				String checksum = fingerprints.fingerprint(file.getValue());
+				size += Files.size(file.getValue());
+				Optional<Item> exist = findUploaded(checksum);
+				if (exist.isPresent()) {
+					logger.info("File has been already uploaded previously: {}", exist.get());
+				} else if (!uploading.add(checksum)) {
+					logger.info("File: {} has same content than other file being uploaded", file.getValue());
+				} else {
+					names.add(normalize(file.getKey()));
+					checksums.add(checksum);
+					paths.add(file.getValue());
+				}
+			}
+			if (paths.isEmpty()) {
+				return Collections.emptyList();
+			}
+
+			//packs are small and cheap to upload again, they are not resumed
+			try (PackInputStream pack = new PackInputStream(paths);
+			     StreamChunker parts = StreamChunker.partitionate(pack, glacierManager.partSize(chunkSize, size))) {
+				PendingUpload upload = new PendingUpload("pack of " + paths.size() + " files", null, vault, region, parts.getPartSize(), -1);
+				UploadResult uploaded = glacierManager.upload(upload, parts, parallel, autotune, noCheckpoint);
+				logger.info("Pack of {} files uploaded successfully with id: {}", paths.size(), uploaded.getArchiveId());
+
+				List<Uploaded> items = new ArrayList<>();
+				for (int i = 0; i < paths.size(); i++) {
+					items.add(new Uploaded(
+							new Item(names.get(i), checksums.get(i), uploaded.getArchiveId(), pack.getOffset(i), pack.getLength(i), uploaded.getSize(), vault, region),
+							null));
+				}
+				return items;
+			}
+		} finally {
+			uploading.removeAll(checksums);
+		}
+	}
+
+	/**
+	 * Stores the batch in the inventory once it reaches the size
+	 */
+	private void commit(List<Uploaded> batch, List<Uploaded> uploaded, int size) throws Exception {
+		synchronized (batch) {
+			batch.addAll(uploaded);
+			if (batch.size() >= size) {
+				List<Item> items = new ArrayList<>();
+				List<PendingUpload> completed = new ArrayList<>();
+				for (Uploaded u : batch) {
+					items.add(u.item);
+					completed.addAll(u.completed());
+				}
+				inventoryManager.addUploadedItems(items, completed);
+				logger.info("Inventory updated with {} files", items.size());
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Uploads the file if it has not been uploaded before. It is not added to the inventory.
+	 * A file with its fingerprint cached is looked for before it is read, otherwise the file is read once, its fingerprint
+	 * comes from the same read that uploads it and it is cached once uploaded
+	 */
+	private Optional<Uploaded> uploadFile(String name, String vault, String region, Path path, long chunkSize, int parallel, boolean autotune, boolean dedup, boolean compress) throws Exception {
+		FingerprintCache.Stat stat = fingerprints.stat(path);
+		String checksum = fingerprints.cached(stat);
+		if (checksum != null) {
+			Optional<Item> exist = findUploaded(checksum);
+			if (exist.isPresent()) {
+				logger.info("File has been already uploaded previously: {}", exist.get());
+				return Optional.empty();
+			}
+			if (!uploading.add(checksum)) {
+				logger.info("File: {} has same content than other file being uploaded", path);
+				return Optional.empty();
+			}
+		}
+
+		try {
+			Uploaded uploaded = upload(name, checksum, stat, vault, region, path, chunkSize, parallel, autotune, dedup, compress);
+			if (checksum == null) {
+				fingerprints.put(stat, uploaded.item.getChecksum());
+				Optional<Item> exist = findUploaded(uploaded.item.getChecksum());
+				if (exist.isPresent()) {
+					logger.info("Same content had been already uploaded previously: {}", exist.get());
+				}
+			}
+			return Optional.of(uploaded);
+		} finally {
+			if (checksum != null) {
+				uploading.remove(checksum);
+			}
+		}
+	}
+
+	/**
+	 * Uploads the file as a single archive, encoded or by its new chunks. Checksum is null when the file has not been read yet
+	 */
+	private Uploaded upload(String name, String checksum, FingerprintCache.Stat stat, String vault, String region, Path path, long chunkSize, int parallel, boolean autotune, boolean dedup, boolean compress) throws Exception {
+		if (dedup) {
+			return uploadDeduplicated(name, checksum, vault, region, path, chunkSize, parallel, autotune);
+		}
+		BlockCodec codec = newCodec(compress);
+		if (codec != null) {
+			try (InputStream input = Files.newInputStream(path)) {
+				Item item = uploadEncoded(name, checksum, vault, region, input, Files.size(path), codec, chunkSize, parallel, autotune);
+				logger.info("File: {} uploaded successfully with name: {} and id: {}", path, name, item.getArchiveId());
+				return new Uploaded(item, null);
+			}
+		}
+		try (FileChunker.PartIterator parts = FileChunker.partitionate(path, glacierManager.partSize(chunkSize, Files.size(path)))) {
+			//the fingerprint may be not known yet, the upload is resumed while the file does not change
+			PendingUpload upload = pendingUpload(name, stat.getVersion(), vault, region, parts);
+			//a single part can not be resumed, no need to keep track of it
+			boolean resumable = parts.getExpectedChunks() > 1;
+			UploadResult uploaded = glacierManager.upload(upload, parts, parallel, autotune, resumable ? inventoryCheckpoint : noCheckpoint);
+			logger.info("File: {} uploaded successfully with name: {} and id: {}", path, name, uploaded.getArchiveId());
+			//a single archive has the tree hash of the file
+			return new Uploaded(
+					new Item(name, checksum == null ? uploaded.getTreeHash() : checksum, uploaded.getArchiveId(), uploaded.getSize(), uploaded.getTreeHash(), vault, region),
+					resumable ? upload : null);
+		}
+	}
+
+	/**
+	 * Item with the same content. Files uploaded as a single archive before fingerprints were tree hashes match by its tree hash
+	 */
+	private Optional<Item> findUploaded(String fingerprint) {
+		Optional<Item> exist = inventoryManager.findItemByChecksum(fingerprint);
+		return exist.isPresent() ? exist : inventoryManager.findItemByTreeHash(fingerprint);
+	}
+
+	/**
+	 * Uploads only the chunks of the file not stored yet, all together as a new archive. The item keeps where every chunk is
+	 */
+	private Uploaded uploadDeduplicated(String name, String checksum, String vault, String region, Path path, long chunkSize, int parallel, boolean autotune) throws Exception {
+		TreeHasher content = new TreeHasher();
+		List<ContentChunker.Cut> cuts = ContentChunker.cut(path, content);
+		if (checksum == null) {
+			checksum = BinaryUtils.toHex(content.digest());
+		}
+
+		Map<String, Item.ChunkRef> stored = new HashMap<>();
+		List<ContentChunker.Cut> pending = new ArrayList<>();
+		long pendingSize = 0;
+		for (ContentChunker.Cut cut : cuts) {
+			if (!stored.containsKey(cut.getHash())) {
+				Optional<Item.ChunkRef> chunk = inventoryManager.findChunk(vault, region, cut.getHash());
+				if (chunk.isPresent()) {
+					stored.put(cut.getHash(), chunk.get());
+				} else {
+					//offset in the new archive, the archive id is known once uploaded
+					stored.put(cut.getHash(), new Item.ChunkRef(cut.getHash(), null, pendingSize, cut.getLength(), 0));
+					pending.add(cut);
+					pendingSize += cut.getLength();
+				}
+			}
+		}
+		logger.info("File: {} has {} chunks, {} new with {} bytes to upload", path, cuts.size(), pending.size(), pendingSize);
+
+		String archiveId = null;
+		if (!pending.isEmpty()) {
+			try (RangesInputStream input = new RangesInputStream(path, pending);
+			     StreamChunker parts = StreamChunker.partitionate(input, glacierManager.partSize(chunkSize, pendingSize))) {
+				PendingUpload upload = new PendingUpload(name, null, vault, region, parts.getPartSize(), -1);
+				archiveId = glacierManager.upload(upload, parts, parallel, autotune, noCheckpoint).getArchiveId();
+			}
+		}
+
+		List<Item.ChunkRef> recipe = new ArrayList<>();
+		long size = 0;
+		for (ContentChunker.Cut cut : cuts) {
+			Item.ChunkRef chunk = stored.get(cut.getHash());
+			if (chunk.getArchiveId() == null) {
+				chunk = new Item.ChunkRef(chunk.getHash(), archiveId, chunk.getOffset(), chunk.getLength(), pendingSize);
+				stored.put(cut.getHash(), chunk);
+			}
+			recipe.add(chunk);
+			size += cut.getLength();
+		}
+		logger.info("File: {} uploaded successfully with name: {} and id: {}", path, name, archiveId);
+		return new Uploaded(new Item(name, checksum, archiveId, size, recipe, vault, region), null);
+	}
+
+	/**
+	 * Encodes the content by blocks while it is uploaded. Encoded uploads are not resumed
+	 */
+	private Item uploadEncoded(String name, String checksum, String vault, String region, InputStream input, long size, BlockCodec codec, long chunkSize, int parallel, boolean autotune) throws Exception {
+		try (BlockEncoder encoder = new BlockEncoder(input, codec);
+		     StreamChunker parts = StreamChunker.partitionate(encoder, glacierManager.partSize(chunkSize, size < 0 ? -1 : BlockEncoder.maxSize(size)))) {
+			PendingUpload upload = new PendingUpload(name, null, vault, region, parts.getPartSize(), -1);
+			UploadResult uploaded = glacierManager.upload(upload, parts, parallel, autotune, noCheckpoint);
+			logger.info("{} bytes stored as {} bytes with {}", encoder.getLogicalSize(), uploaded.getSize(), codec.getName());
+			return new Item(name, checksum == null ? encoder.fingerprint() : checksum, uploaded.getArchiveId(), encoder.getLogicalSize(), uploaded.getTreeHash(), vault, region,
+					codec.getName(), uploaded.getSize(), codec.getEncryption(masterKey));
+		}
+	}
+
+	/**
+	 * Codec for a new archive, every encrypted archive has its own key
+	 */
+	private BlockCodec newCodec(boolean compress) {
+		BlockCodec compression = compress ? new DeflateCodec() : null;
+		if (masterKey == null) {
+			return compression;
+		}
+		return compression == null ? AesGcmCodec.create() : new ChainCodec(compression, AesGcmCodec.create());
+	}
+
+	private void validateEncryption(boolean packed, boolean dedup) {
+		if (masterKey != null && (packed || dedup)) {
+			throw new IllegalArgumentException("Packed and deduplicated files can not be encrypted");
+		}
+	}
+
+	void upload(String name, String vault, String region, InputStream input, long chunkSize, int parallel, boolean autotune, boolean compress) throws Exception {
+		Objects.requireNonNull(input);
+
+		name = normalize(get("File Name", name));
+
+		BlockCodec codec = newCodec(compress);
+		if (codec != null) {
+			Item item = uploadEncoded(name, null, vault, region, input, -1, codec, chunkSize, parallel, autotune);
+			logger.info("Stream uploaded successfully with name: {} and id: {}", name, item.getArchiveId());
+			Optional<Item> exist = inventoryManager.findItemByChecksum(item.getChecksum());
+			if (exist.isPresent()) {
+				logger.info("Same content had been already uploaded previously: {}", exist.get());
+			}
+			inventoryManager.addItem(item);
+			logger.info("Inventory updated");
+			return;
+		}
+
+		//a stream can not be read twice, so it can not be resumed and it is known if it was uploaded only once it is sent
+		try (StreamChunker parts = StreamChunker.partitionate(input, glacierManager.partSize(chunkSize, -1))) {
+			PendingUpload upload = new PendingUpload(name, null, vault, region, parts.getPartSize(), -1);
+			UploadResult uploaded = glacierManager.upload(upload, parts, parallel, autotune, noCheckpoint);
+			logger.info("Stream uploaded successfully with name: {} and id: {}", name, uploaded.getArchiveId());
+
+			String checksum = parts.fingerprint();
+			Optional<Item> exist = inventoryManager.findItemByChecksum(checksum);
+			if (exist.isPresent()) {
+				logger.info("Same content had been already uploaded previously: {}", exist.get());
+			}
+			inventoryManager.addItem(new Item(name, checksum, uploaded.getArchiveId(), uploaded.getSize(), uploaded.getTreeHash(), vault, region));
 			logger.info("Inventory updated");
 		}
 	}
 
+	/**
+	 * Upload previously started for the same file or a new one. Resumed uploads keep the part size they were started with
+	 */
+	private PendingUpload pendingUpload(String name, String checksum, String vault, String region, FileChunker.PartIterator parts) throws Exception {
+		Optional<PendingUpload> pending = inventoryManager.findUploadByChecksum(checksum);
+		if (pending.isPresent()) {
+			PendingUpload upload = pending.get();
+			if (upload.getSize() == parts.getSize() && upload.getVault().equals(vault) && upload.getRegion().equals(region)) {
+				parts.setPartSize(upload.getPartSize());
+				return upload;
+			}
+			logger.info("Previous upload of this file does not match, starting a new one");
+			inventoryManager.removeUpload(upload);
+		}
+		return new PendingUpload(name, checksum, vault, region, parts.getPartSize(), parts.getSize());
+	}
+
 	void createDownloadJob(String name, boolean urgent) throws Exception {
 		Objects.requireNonNull(name);
 
 		Optional<Item> item = inventoryManager.findItemByName(name);
-		if (item.isPresent()) {
+		if (item.isPresent() && item.get().isDeduplicated()) {
+			createDownloadJobs(item.get(), urgent);
+		} else if (item.isPresent()) {
 			Optional<String> jobId = glacierManager.askToDownload(item.get(), urgent);
 			if (jobId.isPresent()) {
-				inventoryManager.addJob(new Job(jobId.get(), item.get().getArchiveId(), item.get().getName(), item.get().getRegion(), item.get().getVault(), urgent));
+				Item i = item.get();
+				inventoryManager.addJob(i.isPacked()
+						? new Job(jobId.get(), i.getArchiveId(), i.getName(), i.getRegion(), i.getVault(), urgent, i.getOffset() - GlacierManager.alignedStart(i.getOffset()), i.getSize())
+						: new Job(jobId.get(), i.getArchiveId(), i.getName(), i.getRegion(), i.getVault(), urgent));
 				logger.info("Job to download {} created successfully", item.get().getName());
 			}
 		} else {
@@ -65,30 +458,157 @@ class GlacierBackupper {
 		}
 	}
 
-	void download(String name, Path target, int chunkSize, boolean removeJob) throws Exception {
+	/**
+	 * A job for each archive with chunks of the item, retrieving only the range around its chunks
+	 */
+	private void createDownloadJobs(Item item, boolean urgent) throws Exception {
+		Map<String, long[]> ranges = new LinkedHashMap<>();
+		for (Item.ChunkRef chunk : item.getRecipe()) {
+			long[] range = ranges.computeIfAbsent(chunk.getArchiveId(), a -> new long[]{Long.MAX_VALUE, 0, chunk.getArchiveSize()});
+			range[0] = Math.min(range[0], chunk.getOffset());
+			range[1] = Math.max(range[1], chunk.getOffset() + chunk.getLength());
+		}
+
+		for (Map.Entry<String, long[]> range : ranges.entrySet()) {
+			long start = GlacierManager.alignedStart(range.getValue()[0]);
+			Optional<String> jobId = glacierManager.askToDownload(range.getKey(), item.getVault(), item.getRegion(),
+					start + "-" + GlacierManager.alignedEnd(range.getValue()[1], range.getValue()[2]), urgent);
+			if (!jobId.isPresent()) {
+				return;
+			}
+			inventoryManager.addJob(new Job(jobId.get(), range.getKey(), item.getName(), item.getRegion(), item.getVault(), urgent, start));
+		}
+		logger.info("{} jobs to download {} created successfully", ranges.size(), item.getName());
+	}
+
+	void download(String name, Path target, long chunkSize, int parallel, boolean autotune, boolean removeJob) throws Exception {
 		Objects.requireNonNull(name);
-		Optional<Job> job = inventoryManager.findJobByName(name);
+		Optional<Item> item = inventoryManager.findItemByName(name);
+		if (!item.isPresent()) {
+			logger.info("Any item with name: {}", name);
+			return;
+		}
+		if (item.get().isDeduplicated()) {
+			downloadDeduplicated(item.get(), target, chunkSize, parallel, autotune, removeJob);
+			return;
+		}
+		BlockCodec codec = BlockCodec.of(item.get(), masterKey);
+		Optional<Job> job = findReadyJob(item.get());
+		if (job.isPresent()) {
+			glacierManager.download(job.get(), target, chunkSize, codec, treeHash(item.get(), codec), parallel, autotune);
+			if (removeJob) {
+				inventoryManager.removeJob(job.get());
+			}
+		}
+	}
 
+	/**
+	 * Writes the item to the output in order, to be piped to another command
+	 */
+	void download(String name, WritableByteChannel output, long chunkSize, int parallel, boolean autotune, boolean removeJob) throws Exception {
+		Objects.requireNonNull(name);
+		Optional<Item> item = inventoryManager.findItemByName(name);
+		if (!item.isPresent()) {
+			logger.info("Any item with name: {}", name);
+			return;
+		}
+		if (item.get().isDeduplicated()) {
+			throw new IllegalArgumentException("Deduplicated files can not be written to stdout, download them to a file");
+		}
+		BlockCodec codec = BlockCodec.of(item.get(), masterKey);
+		Optional<Job> job = findReadyJob(item.get());
 		if (job.isPresent()) {
-			Optional<Boolean> isReady = glacierManager.isReadyDownload(job.get());
-			if (isReady.isPresent()) {
-				if (isReady.get()) {
-					glacierManager.download(job.get(), target, chunkSize);
-					if (removeJob) {
-						inventoryManager.removeJob(job.get());
-					}
-				} else {
-					logger.info("Download is not still available");
-				}
-			} else {
-				logger.info("Download job expired, Create a new job to a future download. They expire more or less after 1day after job is completed");
+			glacierManager.download(job.get(), output, chunkSize, codec, treeHash(item.get(), codec), parallel, autotune);
+			if (removeJob) {
 				inventoryManager.removeJob(job.get());
 			}
-		} else {
+		}
+	}
+
+	/**
+	 * Tree hash of the content written by a download: the one of the archive, or of the original content of an encoded
+	 * item. Packed items are a slice of the archive and are not verified
+	 */
+	private static String treeHash(Item item, BlockCodec codec) {
+		if (item.isPacked()) {
+			return null;
+		}
+		if (codec == null) {
+			return item.getTreeHash();
+		}
+		//encoded items are fingerprinted by the tree hash of the original content, older ones by a MD5 of its head
+		String checksum = item.getChecksum();
+		return checksum != null && checksum.length() == 64 ? checksum : null;
+	}
+
+	/**
+	 * Job to download this version of the item if it is ready, otherwise why it is not is logged
+	 */
+	private Optional<Job> findReadyJob(Item item) throws Exception {
+		Optional<Job> job = inventoryManager.findJob(item);
+		if (!job.isPresent()) {
 			logger.info("Create a job to a future download. Glacier is not a 'live' tool, it can take from 3 to 12h (urgent flag speeds the operation and increase the cost");
+			return Optional.empty();
+		}
+		Optional<Boolean> isReady = glacierManager.isReadyDownload(job.get());
+		if (!isReady.isPresent()) {
+			logger.info("Download job expired, Create a new job to a future download. They expire more or less after 1day after job is completed");
+			inventoryManager.removeJob(job.get());
+			return Optional.empty();
+		}
+		if (!isReady.get()) {
+			logger.info("Download is not still available");
+			return Optional.empty();
+		}
+		return job;
+	}
+
+	private void downloadDeduplicated(Item item, Path target, long chunkSize, int parallel, boolean autotune, boolean removeJob) throws Exception {
+		Map<String, Job> jobs = new HashMap<>();
+		for (Job job : inventoryManager.findJobsByName(item.getName())) {
+			//jobs of other versions
+			if (!item.getArchives().contains(job.getArchiveId())) {
+				continue;
+			}
+			Optional<Boolean> isReady = glacierManager.isReadyDownload(job);
+			if (!isReady.isPresent()) {
+				logger.info("Download job expired, Create a new job to a future download. They expire more or less after 1day after job is completed");
+				inventoryManager.removeJob(job);
+			} else if (!isReady.get()) {
+				logger.info("Download is not still available");
+				return;
+			} else {
+				jobs.put(job.getArchiveId(), job);
+			}
+		}
+		if (!jobs.keySet().containsAll(item.getArchives())) {
+			logger.info("Create a job to a future download. Glacier is not a 'live' tool, it can take from 3 to 12h (urgent flag speeds the operation and increase the cost");
+			return;
+		}
+
+		glacierManager.download(item.getRecipe(), jobs, target, chunkSize, parallel, autotune);
+		if (removeJob) {
+			for (Job job : jobs.values()) {
+				inventoryManager.removeJob(job);
+			}
 		}
 	}
 
+	/**
+	 * Checks a local copy of the item against the tree hash of its upload
+	 */
+	void verify(String name, Path file) throws Exception {
+		Item item = inventoryManager.findItemByName(name).orElseThrow(() -> new IllegalArgumentException(name + " is not in the inventory"));
+		if (item.getTreeHash() == null || item.getCodec() != null || item.isPacked() || item.isDeduplicated()) {
+			throw new IllegalArgumentException("Only files not packed, deduplicated, compressed nor encrypted can be verified");
+		}
+		String treeHash = BinaryUtils.toHex(TreeHash.computeSHA256TreeHash(file.toFile()));
+		if (!treeHash.equals(item.getTreeHash())) {
+			throw new Exception(file + " does not match the upload of " + name);
+		}
+		logger.info("{} matches the upload of {}", file, name);
+	}
+
 	void list() {
 		SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy HH:mm");
 		for (Item item : inventoryManager.getItems()) {
@@ -99,9 +619,15 @@ class GlacierBackupper {
 	}
 
 	void jobStatus() throws Exception {
+		//all jobs are asked at once, then reported in order
+		Map<Job, CompletableFuture<Optional<StatusCode>>> statuses = new LinkedHashMap<>();
 		for (Job job : inventoryManager.getJobs()) {
+			statuses.put(job, glacierManager.requestJobStatus(job));
+		}
 
-			Optional<StatusCode> statusCode = glacierManager.getJobStatus(job);
+		for (Map.Entry<Job, CompletableFuture<Optional<StatusCode>>> status : statuses.entrySet()) {
+			Job job = status.getKey();
+			Optional<StatusCode> statusCode = status.getValue().get();
 			if (statusCode.isPresent()) {
 				logger.info("JOB FOR: {}", job.getName());
 				logger.info("Created {} ago", diffDates(job.getCreation(), new Date()));
@@ -120,12 +646,32 @@ class GlacierBackupper {
 	void remove(String name) throws Exception {
 		Optional<Item> item = inventoryManager.findItemByName(name);
 		if (item.isPresent()) {
-			glacierManager.remove(item.get());
-			inventoryManager.removeItem(item.get());
+			//archives shared with other items (packs, deduplicated chunks) are deleted with its last item
+			Set<String> archives = item.get().getArchives();
+			archives.removeIf(a -> inventoryManager.findItemsByArchive(a).stream().anyMatch(i -> !i.equals(item.get())));
+			for (String archiveId : archives) {
+				glacierManager.remove(archiveId, item.get().getVault(), item.get().getRegion());
+			}
+			inventoryManager.removeItem(item.get(), archives);
 			logger.info("File {} has been removed from the vault {}", item.get().getName(), item.get().getArchiveId());
 		}
 	}
 
+	@Override
+	public void close() {
+		glacierManager.close();
+		try {
+			fingerprints.store();
+		} catch (IOException e) {
+			logger.error("Fingerprints could not be stored: {}", e.getMessage());
+		}
+		try {
+			inventoryManager.close();
+		} catch (Exception e) {
+			logger.error("Inventory could not be closed: {}", e.getMessage());
+		}
+	}
+
 	private String get(String element, String... options) {
 		for (String op : options) {
 			if (op != null && !op.isEmpty()) {
@@ -135,20 +681,6 @@ class GlacierBackupper {
 		throw new IllegalArgumentException(element + " has not value");
 	}
 
-	private String calculateChecksum(Path path) throws Exception {
-		MessageDigest md = MessageDigest.getInstance("MD5");
-		try (InputStream is = Files.newInputStream(path);
-			 DigestInputStream dis = new DigestInputStream(is, md)) {
-			byte[] buffer = new byte[4 * 1024 * 1024];
-			int i = 0;
-			while (dis.read(buffer) > -1 && i < 10) { //partitial checksum of max first 40mb
-				i++;
-			}
-		}
-		byte[] digest = md.digest();
-		return DatatypeConverter.printHexBinary(digest).toUpperCase();
-	}
-
 	private String diffDates(Date d1, Date d2) {
 		SimpleDateFormat sdf = new SimpleDateFormat("H'h' m'm' s's'");
 		long diffInMillis = Math.abs(d1.getTime() - d2.getTime());
@@ -161,4 +693,20 @@ class GlacierBackupper {
 				.normalize(src, Normalizer.Form.NFD)
 				.replaceAll("[^\\p{ASCII}]", "");
 	}
+
+	private static class Uploaded {
+
+		private final Item item;
+		//pending upload kept in the inventory, null if it was not stored
+		private final PendingUpload upload;
+
+		Uploaded(Item item, PendingUpload upload) {
+			this.item = item;
+			this.upload = upload;
+		}
+
+		List<PendingUpload> completed() {
+			return upload == null ? Collections.emptyList() : Collections.singletonList(upload);
+		}
+	}
 }
\ No newline at end of file
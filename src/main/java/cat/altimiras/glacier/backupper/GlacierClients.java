@@ -0,0 +1,183 @@
+package cat.altimiras.glacier.backupper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttribute;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.glacier.GlacierAsyncClient;
+import software.amazon.awssdk.services.glacier.GlacierClient;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clients shared by all operations, one per region (and kind), built on first use and closed at the end.
+ * Building a client creates its connection pool, so connections and TLS sessions are reused between operations.
+ * Clients of parts and ranges do not retry, every attempt goes through {@link Retry} and the transfer window.
+ */
+class GlacierClients implements AutoCloseable {
+
+	final static Logger logger = LoggerFactory.getLogger(GlacierClients.class);
+
+	final private AwsCredentialsProvider awsCredentialsProvider;
+	final private int maxConnections;
+	final private Duration keepAlive;
+
+	final private Map<String, GlacierClient> clients = new ConcurrentHashMap<>();
+	final private Map<String, GlacierClient> transferClients = new ConcurrentHashMap<>();
+	final private Map<String, GlacierAsyncClient> asyncClients = new ConcurrentHashMap<>();
+	final private Map<String, RequestStats> stats = new ConcurrentHashMap<>();
+
+	GlacierClients(AwsCredentialsProvider awsCredentialsProvider, int maxConnections, Duration keepAlive) {
+		this.awsCredentialsProvider = awsCredentialsProvider;
+		this.maxConnections = maxConnections;
+		this.keepAlive = keepAlive;
+	}
+
+	GlacierClient get(String region) {
+		return clients.computeIfAbsent(region, r -> GlacierClient.builder()
+				.credentialsProvider(awsCredentialsProvider)
+				.region(Region.of(r))
+				.httpClientBuilder(ApacheHttpClient.builder()
+						.maxConnections(maxConnections)
+						.connectionMaxIdleTime(keepAlive))
+				.overrideConfiguration(overrideConfiguration(r, RetryPolicy.defaultRetryPolicy()))
+				.build());
+	}
+
+	/**
+	 * Client for parts and ranges, without retries of the SDK
+	 */
+	GlacierClient getTransfer(String region) {
+		return transferClients.computeIfAbsent(region, r -> GlacierClient.builder()
+				.credentialsProvider(awsCredentialsProvider)
+				.region(Region.of(r))
+				.httpClientBuilder(ApacheHttpClient.builder()
+						.maxConnections(maxConnections)
+						.connectionMaxIdleTime(keepAlive))
+				.overrideConfiguration(overrideConfiguration(r + " transfer", RetryPolicy.none()))
+				.build());
+	}
+
+	/**
+	 * Client of the non blocking engine, without retries of the SDK
+	 */
+	GlacierAsyncClient getAsync(String region) {
+		return asyncClients.computeIfAbsent(region, r -> GlacierAsyncClient.builder()
+				.credentialsProvider(awsCredentialsProvider)
+				.region(Region.of(r))
+				.httpClientBuilder(NettyNioAsyncHttpClient.builder()
+						.maxConcurrency(maxConnections)
+						.connectionMaxIdleTime(keepAlive))
+				.overrideConfiguration(overrideConfiguration(r + " async", RetryPolicy.none()))
+				.build());
+	}
+
+	/**
+	 * Requests of every client built till now
+	 */
+	Collection<RequestStats> getStats() {
+		return stats.values();
+	}
+
+	@Override
+	public void close() {
+		for (RequestStats s : getStats()) {
+			logger.info("Requests {}: max connections {}, peak requests in flight {}, requests {}", s.getName(), s.getMaxConnections(), s.getPeakInFlight(), s.getRequests());
+		}
+		clients.values().forEach(GlacierClient::close);
+		transferClients.values().forEach(GlacierClient::close);
+		asyncClients.values().forEach(GlacierAsyncClient::close);
+		clients.clear();
+		transferClients.clear();
+		asyncClients.clear();
+	}
+
+	private ClientOverrideConfiguration overrideConfiguration(String name, RetryPolicy retryPolicy) {
+		RequestStats requestStats = new RequestStats(name, maxConnections);
+		stats.put(name, requestStats);
+		return ClientOverrideConfiguration.builder()
+				.addExecutionInterceptor(requestStats)
+				.retryPolicy(retryPolicy)
+				.build();
+	}
+
+	/**
+	 * Counts the requests in flight, from being sent till its response arrives. A response body streamed after it
+	 * (a downloaded range) still holds its connection but it is not counted, the SDK does not tell when it ends
+	 */
+	static class RequestStats implements ExecutionInterceptor {
+
+		private static final ExecutionAttribute<Boolean> IN_FLIGHT = new ExecutionAttribute<>("RequestInFlight");
+
+		private final String name;
+		private final int maxConnections;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final AtomicInteger peakInFlight = new AtomicInteger();
+		private final AtomicLong requests = new AtomicLong();
+
+		RequestStats(String name, int maxConnections) {
+			this.name = name;
+			this.maxConnections = maxConnections;
+		}
+
+		@Override
+		public void beforeTransmission(Context.BeforeTransmission context, ExecutionAttributes executionAttributes) {
+			requests.incrementAndGet();
+			//a retried attempt reuses the count of the failed one
+			if (!Boolean.TRUE.equals(executionAttributes.getAttribute(IN_FLIGHT))) {
+				executionAttributes.putAttribute(IN_FLIGHT, true);
+				peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+			}
+		}
+
+		@Override
+		public void afterTransmission(Context.AfterTransmission context, ExecutionAttributes executionAttributes) {
+			release(executionAttributes);
+		}
+
+		@Override
+		public void onExecutionFailure(Context.FailedExecution context, ExecutionAttributes executionAttributes) {
+			release(executionAttributes);
+		}
+
+		private void release(ExecutionAttributes executionAttributes) {
+			if (Boolean.TRUE.equals(executionAttributes.getAttribute(IN_FLIGHT))) {
+				executionAttributes.putAttribute(IN_FLIGHT, false);
+				inFlight.decrementAndGet();
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getMaxConnections() {
+			return maxConnections;
+		}
+
+		public int getInFlight() {
+			return inFlight.get();
+		}
+
+		public int getPeakInFlight() {
+			return peakInFlight.get();
+		}
+
+		public long getRequests() {
+			return requests.get();
+		}
+	}
+}
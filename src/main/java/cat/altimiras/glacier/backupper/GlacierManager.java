@@ -6,30 +6,70 @@ import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.ProfileCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
-import software.amazon.awssdk.core.ResponseInputStream;
-import software.amazon.awssdk.core.sync.RequestBody;
-import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.glacier.GlacierClient;
 import software.amazon.awssdk.services.glacier.model.*;
 import software.amazon.awssdk.utils.BinaryUtils;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
-class GlacierManager {
+class GlacierManager implements AutoCloseable {
 
 	final static Logger logger = LoggerFactory.getLogger(GlacierManager.class);
 
 	final private AwsCredentialsProvider awsCredentialsProvider;
 
-	final private int defaultChunkSize = 1024 * 1024 *16;
+	final private long defaultChunkSize = 1024 * 1024 *16;
 
-	public GlacierManager(String awsKey, String awsSecret) {
+	final private int defaultParallel = 1;
+
+	//https://docs.aws.amazon.com/amazonglacier/latest/dev/uploading-archive-mpu.html
+	static final int MAX_PARTS = 10000;
+	static final long MIN_PART_SIZE = 1024 * 1024;
+	static final long MAX_PART_SIZE = 4096L * 1024 * 1024;
+
+	final private int maxConnections;
+
+	//bytes of parts in flight by all uploads, in MB, null when there is no limit
+	final private Semaphore bytesInFlight;
+	//status requests in flight, a status asked for every job does not take a thread or a connection each
+	final private Semaphore describes;
+	final private int bytesInFlightLimit;
+
+	//shared by all uploads and downloads, null when there is no limit
+	final private BandwidthLimiter bandwidth;
+
+	final private GlacierClients clients;
+
+	final private TransferEngine engine;
+
+	public GlacierManager(String awsKey, String awsSecret, boolean asyncEngine, int maxConnections, Duration keepAlive, long maxInFlight, BandwidthLimiter bandwidth) {
 
 
 		if (awsKey == null || awsSecret == null) {
@@ -39,73 +79,264 @@ class GlacierManager {
 			AwsBasicCredentials credentials = AwsBasicCredentials.create(awsKey, awsSecret);
 			this.awsCredentialsProvider = StaticCredentialsProvider.create(credentials);
 		}
+
+		this.maxConnections = maxConnections;
+		this.bandwidth = bandwidth;
+		this.bytesInFlightLimit = (int) Math.max(1, Math.min(maxInFlight / MIN_PART_SIZE, Integer.MAX_VALUE));
+		this.bytesInFlight = maxInFlight > 0 ? new Semaphore(bytesInFlightLimit) : null;
+		this.describes = new Semaphore(maxConnections);
+		this.clients = new GlacierClients(awsCredentialsProvider, maxConnections, keepAlive);
+		this.engine = asyncEngine ? new AsyncTransferEngine(clients) : new SyncTransferEngine(clients);
 	}
 
 	//https://github.com/aws/aws-sdk-java/blob/master/aws-java-sdk-glacier/src/main/java/com/amazonaws/services/glacier/transfer/ArchiveTransferManager.java
-	public String upload(String name, Path file, String region, String vault, int chunkSize) throws Exception {
+	public UploadResult upload(PendingUpload upload, PartSource parts, int parallel, boolean autotune, UploadCheckpoint checkpoint) throws Exception {
 
-		chunkSize = chunkSize(chunkSize);
-		GlacierClient glacier = getClient(region);
+		parallel = parallel(parallel);
+		if (autotune && upload.getParallel() > 0) {
+			parallel = upload.getParallel();
+		}
+		GlacierClient glacier = getClient(upload.getRegion());
 
-		InitiateMultipartUploadRequest initiateMultipartUploadRequest = InitiateMultipartUploadRequest.builder()
-				.vaultName(vault)
-				.partSize(String.valueOf(chunkSize))
-				.archiveDescription(name)
-				.build();
+		//parts confirmed by the vault are not read nor uploaded again
+		Map<Long, String> confirmed = new HashMap<>();
+		if (upload.getUploadId() != null) {
+			try {
+				confirmed.putAll(listParts(glacier, upload, parts.getSize()));
+				logger.info("Resuming upload, {} chunks already uploaded", confirmed.size());
+			} catch (ResourceNotFoundException e) {
+				logger.info("Previous upload is not available anymore on Glacier, starting again");
+				upload.setUploadId(null);
+			}
+		}
 
-		InitiateMultipartUploadResponse initiateMultipartUploadResponse = glacier.initiateMultipartUpload(initiateMultipartUploadRequest);
-		String uploadId = initiateMultipartUploadResponse.uploadId();
+		if (upload.getUploadId() == null) {
+			InitiateMultipartUploadRequest initiateMultipartUploadRequest = InitiateMultipartUploadRequest.builder()
+					.vaultName(upload.getVault())
+					.partSize(String.valueOf(parts.getPartSize()))
+					.archiveDescription(upload.getName())
+					.build();
+
+			InitiateMultipartUploadResponse initiateMultipartUploadResponse = glacier.initiateMultipartUpload(initiateMultipartUploadRequest);
+			upload.setUploadId(initiateMultipartUploadResponse.uploadId());
+		}
+		//the inventory keeps its own copy, it is replaced under its lock
+		List<PendingUpload.Part> confirmedParts = new ArrayList<>();
+		confirmed.forEach((start, checksum) -> confirmedParts.add(new PendingUpload.Part(start, checksum)));
+		upload.setParts(confirmedParts);
+		checkpoint.started(upload);
 
 		List<byte[]> partChecksums = new ArrayList<>();
 
-		FileChunker.PartIterator it = FileChunker.partitionate(file, chunkSize);
-		long expectedChunks = it.getExpectedChunks() + 1;
-		long currentChunks = 1;
-		while (it.hasNext()) {
+		//parts are read in order by this thread, so checksums keep the order, and uploaded by the engine.
+		//The window bounds the parts in memory to the ones in flight
+		TransferWindow inFlight = new TransferWindow(parallel, maxConnections, autotune);
+		List<CompletableFuture<?>> uploads = new ArrayList<>();
+		String expectedChunks = parts.getExpectedChunks() < 0 ? "?" : String.valueOf(parts.getExpectedChunks());
+		AtomicLong currentChunks = new AtomicLong(1);
+		try {
+			while (parts.hasNext()) {
+				String uploaded = confirmed.get(parts.getPosition());
+				if (uploaded != null) {
+					partChecksums.add(BinaryUtils.fromHex(uploaded));
+					parts.skip();
+					currentChunks.getAndIncrement();
+					continue;
+				}
 
-			FileChunker.Chunk chunk = it.next();
+				if (parts.getPosition() / parts.getPartSize() >= MAX_PARTS) {
+					throw new Exception("Archive needs more than " + MAX_PARTS + " chunks, use a bigger chunk size");
+				}
 
-			String checksum = BinaryUtils.toHex(chunk.getChecksum());
-			partChecksums.add(chunk.getChecksum());
+				inFlight.acquire();
+				int megabytes = acquireBytes(parts.getPartSize());
+				FileChunker.Chunk chunk;
+				try {
+					chunk = parts.next();
+				} catch (Exception e) {
+					releaseBytes(megabytes);
+					throw e;
+				}
+				partChecksums.add(chunk.getChecksum());
 
-			UploadMultipartPartRequest uploadMultipartPartRequest = UploadMultipartPartRequest.builder()
-					.uploadId(uploadId)
-					.vaultName(vault)
-					.range(String.format("bytes %s-%s/*", chunk.getStart(), chunk.getStart() + chunk.getContent().length - 1))
-					.checksum(checksum)
-					.build();
+				long started = System.nanoTime();
+				UploadMultipartPartRequest uploadPartRequest = uploadPartRequest(upload, chunk);
+				//every part is retried on its own, throttling shrinks the window
+				uploads.add(Retry.withRetries("Chunk at " + chunk.getStart(), metered(chunk.getLength(), () -> engine.uploadPart(upload.getRegion(), uploadPartRequest, chunk)), inFlight::congested)
+						.whenComplete((r, e) -> {
+							chunk.release();
+							releaseBytes(megabytes);
+							if (e == null) {
+								inFlight.completed(chunk.getLength(), System.nanoTime() - started);
+							} else {
+								inFlight.failed();
+							}
+						})
+						.thenRun(() -> {
+							try {
+								upload.setParallel(inFlight.size());
+								checkpoint.partUploaded(upload, new PendingUpload.Part(chunk.getStart(), BinaryUtils.toHex(chunk.getChecksum())));
+							} catch (Exception e) {
+								throw new CompletionException(e);
+							}
+							logger.info("Chunk uploaded {}/{}", currentChunks.getAndIncrement(), expectedChunks);
+						}));
+			}
+		} catch (Exception e) {
+			//parts already handed to the engine hold shared permits until they end
+			awaitAll(uploads);
+			throw e;
+		}
 
-			glacier.uploadMultipartPart(uploadMultipartPartRequest, RequestBody.fromBytes(chunk.getContent()));
-			logger.info("Chunk uploaded {}/{}", currentChunks, expectedChunks);
-			currentChunks++;
+		//a failed part does not stop the others, all of them are waited before reporting
+		int failed = 0;
+		for (CompletableFuture<?> future : uploads) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				failed++;
+				logger.error("Chunk upload failed: {}", cause(e).getMessage());
+			}
+		}
+		if (failed > 0) {
+			throw new Exception(failed + " of " + uploads.size() + " chunks could not be uploaded. Upload again same file to resume it");
 		}
 
+		String treeHash = Hash.calculateTreeHashStr(partChecksums);
 		CompleteMultipartUploadRequest completeMultipartUploadRequest = CompleteMultipartUploadRequest.builder()
-				.uploadId(uploadId)
-				.vaultName(vault)
-				.archiveSize(String.valueOf(file.toFile().length()))
-				.checksum(Hash.calculateTreeHashStr(partChecksums))
+				.uploadId(upload.getUploadId())
+				.vaultName(upload.getVault())
+				.archiveSize(String.valueOf(parts.getSize()))
+				.checksum(treeHash)
 				.build();
 
 		CompleteMultipartUploadResponse completeMultipartUploadResponse = glacier.completeMultipartUpload(completeMultipartUploadRequest);
 		logger.info("Uploaded completed");
-		return completeMultipartUploadResponse.archiveId();
+		return new UploadResult(completeMultipartUploadResponse.archiveId(), treeHash, parts.getSize());
+	}
+
+	private static void awaitAll(List<CompletableFuture<?>> futures) throws InterruptedException {
+		for (CompletableFuture<?> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException | CancellationException e) {
+				//failures are reported by the caller
+			}
+		}
+	}
+
+	private int acquireBytes(long bytes) throws InterruptedException {
+		if (bytesInFlight == null) {
+			return 0;
+		}
+		//a part bigger than the limit takes the whole limit
+		int megabytes = (int) Math.min((bytes + MIN_PART_SIZE - 1) / MIN_PART_SIZE, Integer.MAX_VALUE);
+		megabytes = Math.min(megabytes, bytesInFlightLimit);
+		bytesInFlight.acquire(megabytes);
+		return megabytes;
+	}
+
+	/**
+	 * Every attempt waits for the bandwidth it sends or receives, a retried one too
+	 */
+	private <T> Supplier<CompletableFuture<T>> metered(long bytes, Supplier<CompletableFuture<T>> attempt) {
+		return () -> {
+			if (bandwidth != null) {
+				try {
+					bandwidth.acquire(bytes);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					CompletableFuture<T> interrupted = new CompletableFuture<>();
+					interrupted.completeExceptionally(e);
+					return interrupted;
+				}
+			}
+			return attempt.get();
+		};
+	}
+
+	private static long rangeLength(String range) {
+		String[] positions = range.substring(range.indexOf('=') + 1).split("-");
+		return Long.parseLong(positions[1]) - Long.parseLong(positions[0]) + 1;
+	}
+
+	private void releaseBytes(int megabytes) {
+		if (bytesInFlight != null) {
+			bytesInFlight.release(megabytes);
+		}
+	}
+
+	/**
+	 * Parts already stored on the vault for the upload, by start position.
+	 * Only parts with the expected size for its position are taken into account
+	 */
+	private Map<Long, String> listParts(GlacierClient glacier, PendingUpload upload, long size) {
+		Map<Long, String> uploaded = new HashMap<>();
+		String marker = null;
+		do {
+			ListPartsRequest listPartsRequest = ListPartsRequest.builder()
+					.uploadId(upload.getUploadId())
+					.vaultName(upload.getVault())
+					.marker(marker)
+					.build();
+
+			ListPartsResponse listPartsResponse = glacier.listParts(listPartsRequest);
+			for (PartListElement part : listPartsResponse.parts()) {
+				String[] range = part.rangeInBytes().split("-");
+				long start = Long.parseLong(range[0]);
+				long end = Long.parseLong(range[1]);
+				if (end - start + 1 == Math.min(upload.getPartSize(), size - start)) {
+					uploaded.put(start, part.sha256TreeHash());
+				}
+			}
+			marker = listPartsResponse.marker();
+		} while (marker != null);
+		return uploaded;
+	}
+
+	private UploadMultipartPartRequest uploadPartRequest(PendingUpload upload, FileChunker.Chunk chunk) {
+		return UploadMultipartPartRequest.builder()
+				.uploadId(upload.getUploadId())
+				.vaultName(upload.getVault())
+				.range(String.format("bytes %s-%s/*", chunk.getStart(), chunk.getStart() + chunk.getLength() - 1))
+				.checksum(BinaryUtils.toHex(chunk.getChecksum()))
+				.build();
+	}
+
+	/**
+	 * Receives the progress of an upload to be able to resume it later
+	 */
+	interface UploadCheckpoint {
+
+		void started(PendingUpload upload) throws Exception;
+
+		void partUploaded(PendingUpload upload, PendingUpload.Part part) throws Exception;
 	}
 
 	public Optional<String> askToDownload(Item item, boolean urgent) throws Exception {
+		//only the MB aligned range around a packed item is retrieved
+		String range = item.isPacked() ? alignedStart(item.getOffset()) + "-" + alignedEnd(item.getOffset() + item.getSize(), item.getArchiveSize()) : null;
+		return askToDownload(item.getArchiveId(), item.getVault(), item.getRegion(), range, urgent);
+	}
+
+	/**
+	 * Requests the archive, or a range of it if range is not null
+	 */
+	public Optional<String> askToDownload(String archiveId, String vault, String region, String range, boolean urgent) throws Exception {
 
 		try {
-		GlacierClient glacier = getClient(item.getRegion());
+		GlacierClient glacier = getClient(region);
 
 		JobParameters jobParameters = JobParameters.builder()
-				.archiveId(item.getArchiveId())
+				.archiveId(archiveId)
 				.type("archive-retrieval")
 				.tier(urgent ? "Standard" : "Bulk")
+				.retrievalByteRange(range)
 				.build();
 
 		InitiateJobRequest initiateJobRequest = InitiateJobRequest.builder()
 				.jobParameters(jobParameters)
-				.vaultName(item.getVault())
+				.vaultName(vault)
 				.build();
 
 		InitiateJobResponse initiateJobResponse = glacier.initiateJob(initiateJobRequest);
@@ -116,108 +347,733 @@ class GlacierManager {
 		}
 	}
 
+	/**
+	 * Downloads ranges of chunk size at the same time, as many as the window allows, each one written at its position
+	 */
+	public void download(Job job, Path target, long chunkSize, BlockCodec codec, String treeHash, int parallel, boolean autotune) throws Exception {
+
+		chunkSize = rangeSize(chunkSize);
+
+		DescribeJobRequest describeJobRequest = DescribeJobRequest.builder()
+				.jobId(job.getJobId())
+				.vaultName(job.getVault())
+				.build();
+
+		DescribeJobResponse describeJobResponse = await(engine.describeJob(job.getRegion(), describeJobRequest));
+		//a packed item is a slice of the retrieved range
+		long from = job.isSlice() ? job.getSliceStart() : 0;
+		long size = job.isSlice() ? job.getSliceLength() : describeJobResponse.archiveSizeInBytes();
+
+		if (codec != null) {
+			downloadDecoded(job, size, target, bufferedRangeSize(chunkSize), codec, treeHash, parallel, autotune);
+			return;
+		}
+
+		try (FileChannel output = open(target, size)) {
+			List<Range> ranges = new ArrayList<>();
+			for (long currentPos = 0; currentPos < size; currentPos += chunkSize) {
+				long toRead = Math.min(size - currentPos, chunkSize);
+				ranges.add(new Range(job, from + currentPos, toRead, new FileRangeWriter(output, currentPos)));
+			}
+			try (DownloadProgress progress = DownloadProgress.open(target, output, job.getJobId() + ":" + from + ":" + chunkSize, ranges.size())) {
+				downloadRanges(ranges, parallel, autotune, progress);
+				progress.completed();
+				//ranges of a power of 2 MB are subtrees of the archive tree hash
+				if (treeHash != null && !job.isSlice() && size > 0 && chunkSize >= MIN_PART_SIZE && Long.bitCount(chunkSize) == 1) {
+					verify(progress.treeHashes(), treeHash);
+				}
+			}
+		}
+
+		logger.info("Whole file has been downloaded into: {}", target);
+	}
+
+	private static void verify(List<byte[]> treeHashes, String expected) throws Exception {
+		if (treeHashes == null) {
+			logger.info("Tree hash of the whole file can not be verified");
+			return;
+		}
+		String treeHash = Hash.calculateTreeHashStr(treeHashes);
+		if (!treeHash.equals(expected)) {
+			throw new Exception("Tree hash of the downloaded file " + treeHash + " does not match " + expected + " of the upload");
+		}
+		logger.info("Tree hash of the whole file verified");
+	}
+
+	/**
+	 * Ranges retrieved must be aligned to MB, except the end of the archive
+	 */
+	static long alignedStart(long offset) {
+		return offset / MIN_PART_SIZE * MIN_PART_SIZE;
+	}
+
+	/**
+	 * Last byte of the aligned range that contains up to end (exclusive)
+	 */
+	static long alignedEnd(long end, long archiveSize) {
+		return Math.min((end + MIN_PART_SIZE - 1) / MIN_PART_SIZE * MIN_PART_SIZE, archiveSize) - 1;
+	}
+
+	/**
+	 * Downloads an archive encoded by blocks: trailer and index first, then ranges of blocks,
+	 * decoded on all cores while other ranges are downloaded. The decoded content is verified against its tree hash
+	 */
+	private void downloadDecoded(Job job, long size, Path target, long chunkSize, BlockCodec codec, String treeHash, int parallel, boolean autotune) throws Exception {
+		List<BlockFrame.Entry> entries = readIndex(job, size);
+		long logicalSize = entries.isEmpty() ? 0 : entries.get(entries.size() - 1).getLogicalOffset() + entries.get(entries.size() - 1).getLogicalLength();
+		byte[][] blockHashes = new byte[entries.size()][];
+
+		ExecutorService decoders = newDecoders();
+		//buffers of ranges already decoded are reused by the next ones
+		Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+		try (FileChannel output = open(target, logicalSize)) {
+			List<Range> ranges = new ArrayList<>();
+			for (int[] blocks : groupBlocks(entries, chunkSize)) {
+				int first = blocks[0];
+				int last = blocks[1];
+				long start = entries.get(first).getOffset();
+				long length = entries.get(last - 1).getOffset() + entries.get(last - 1).getLength() + BlockFrame.HEADER - start;
+				//the range is kept in memory till its blocks are decoded, then the slot of the window is released
+				BufferRangeWriter writer = new BufferRangeWriter((int) length, buffers);
+				ranges.add(new Range(job, start, length, writer, () -> {
+					List<CompletableFuture<Void>> decoded = new ArrayList<>();
+					for (int b = first; b < last; b++) {
+						BlockFrame.Entry entry = entries.get(b);
+						long index = b;
+						decoded.add(CompletableFuture.runAsync(() -> {
+							byte[] data = decode(index, index == entries.size() - 1, entry, writer.buffer, (int) (entry.getOffset() - start), codec);
+							blockHashes[(int) index] = new TreeHasher().update(data, 0, data.length).digest();
+							write(data, entry.getLogicalOffset(), output);
+						}, decoders));
+					}
+					return CompletableFuture.allOf(decoded.toArray(new CompletableFuture[0])).whenComplete((r, e) -> writer.release());
+				}));
+			}
+			try (DownloadProgress progress = DownloadProgress.open(target, output, job.getJobId() + ":blocks:" + chunkSize, ranges.size())) {
+				downloadRanges(ranges, parallel, autotune, progress);
+				progress.completed();
+			}
+			if (treeHash != null) {
+				verifyBlocks(blockHashes, treeHash);
+			}
+		} finally {
+			decoders.shutdownNow();
+		}
+
+		logger.info("Whole file has been downloaded into: {}", target);
+	}
+
+	/**
+	 * Tree hash of decoded content from the tree hashes of its blocks, of a power of 2 MB. Blocks decoded by a previous
+	 * run are not hashed again, then it can not be verified
+	 */
+	private static void verifyBlocks(byte[][] blockHashes, String expected) throws Exception {
+		List<byte[]> treeHashes = Arrays.asList(blockHashes);
+		verify(treeHashes.contains(null) ? null : treeHashes, expected);
+	}
+
+	/**
+	 * Index of the blocks of an encoded archive, read from its end. Blocks must follow one another in the archive and
+	 * in the original content. Empty content of older archives has no index
+	 */
+	private List<BlockFrame.Entry> readIndex(Job job, long size) throws Exception {
+		long indexOffset = BlockFrame.indexOffset(ByteBuffer.wrap(readRange(job, size - BlockFrame.TRAILER, BlockFrame.TRAILER)));
+		long indexLength = size - BlockFrame.TRAILER - indexOffset;
+		if (indexOffset < 0 || indexLength < 0 || indexLength > FileChunker.MAX_WINDOW) {
+			throw new IllegalStateException("Index of the archive is out of its bounds");
+		}
+		if (indexLength == 0) {
+			return Collections.emptyList();
+		}
+		List<BlockFrame.Entry> entries = BlockFrame.entries(ByteBuffer.wrap(readRange(job, indexOffset, indexLength)));
+		BlockFrame.checkContiguous(entries, indexOffset);
+		return entries;
+	}
+
+	/**
+	 * Consecutive blocks downloaded as a single range up to chunk size, as first and last (exclusive) block of every range
+	 */
+	private static List<int[]> groupBlocks(List<BlockFrame.Entry> entries, long chunkSize) {
+		List<int[]> groups = new ArrayList<>();
+		int i = 0;
+		while (i < entries.size()) {
+			int first = i;
+			long length = BlockFrame.HEADER + entries.get(i).getLength();
+			i++;
+			while (i < entries.size() && length + BlockFrame.HEADER + entries.get(i).getLength() <= chunkSize) {
+				length += BlockFrame.HEADER + entries.get(i).getLength();
+				i++;
+			}
+			groups.add(new int[]{first, i});
+		}
+		return groups;
+	}
 
-	public void download(Job job, Path target, int chunkSize) throws Exception {
+	private static ExecutorService newDecoders() {
+		return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+			Thread t = new Thread(r, "block-decoder");
+			t.setDaemon(true);
+			return t;
+		});
+	}
 
-		chunkSize = chunkSize(chunkSize);
-		GlacierClient glacier = getClient(job.getRegion());
+	private static byte[] decode(long index, boolean last, BlockFrame.Entry entry, byte[] range, int offset, BlockCodec codec) {
+		try {
+			ByteBuffer header = ByteBuffer.wrap(range, offset, BlockFrame.HEADER);
+			if (header.getInt() != entry.getLength() || header.getInt() != entry.getLogicalLength()) {
+				throw new IllegalStateException("Block " + index + " does not match the index");
+			}
+			BlockCodec.Position position = new BlockCodec.Position(index, entry.getLogicalOffset(), entry.getLogicalLength(), last);
+			return codec.decode(position, range, offset + BlockFrame.HEADER, entry.getLength());
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	private static void write(byte[] data, long position, FileChannel output) {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			while (buffer.hasRemaining()) {
+				position += output.write(buffer, position);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Downloads the job output to a stream, in order. Ranges are downloaded at the same time and kept in memory
+	 * till all ranges before them are written, up to the max in flight (or twice the ranges in parallel)
+	 */
+	public void download(Job job, WritableByteChannel output, long chunkSize, BlockCodec codec, String treeHash, int parallel, boolean autotune) throws Exception {
+
+		chunkSize = bufferedRangeSize(rangeSize(chunkSize));
 
 		DescribeJobRequest describeJobRequest = DescribeJobRequest.builder()
 				.jobId(job.getJobId())
 				.vaultName(job.getVault())
 				.build();
 
-		DescribeJobResponse describeJobResponse = glacier.describeJob(describeJobRequest);
-		long size = describeJobResponse.archiveSizeInBytes();
+		DescribeJobResponse describeJobResponse = await(engine.describeJob(job.getRegion(), describeJobRequest));
+		long from = job.isSlice() ? job.getSliceStart() : 0;
+		long size = job.isSlice() ? job.getSliceLength() : describeJobResponse.archiveSizeInBytes();
+
+		Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+		List<StreamRange> ranges = new ArrayList<>();
+		//tree hashes of the decoded blocks
+		byte[][] blockHashes = null;
+		ExecutorService decoders = newDecoders();
+		try {
+			if (codec == null) {
+				for (long currentPos = 0; currentPos < size; currentPos += chunkSize) {
+					int length = (int) Math.min(size - currentPos, chunkSize);
+					BufferRangeWriter writer = new BufferRangeWriter(length, buffers);
+					ranges.add(new StreamRange(from + currentPos, length, writer,
+							() -> CompletableFuture.completedFuture(Collections.singletonList(ByteBuffer.wrap(writer.buffer, 0, length)))));
+				}
+			} else {
+				List<BlockFrame.Entry> entries = readIndex(job, size);
+				blockHashes = new byte[entries.size()][];
+				byte[][] hashes = blockHashes;
+				for (int[] blocks : groupBlocks(entries, chunkSize)) {
+					long start = entries.get(blocks[0]).getOffset();
+					long length = entries.get(blocks[1] - 1).getOffset() + entries.get(blocks[1] - 1).getLength() + BlockFrame.HEADER - start;
+					BufferRangeWriter writer = new BufferRangeWriter((int) length, buffers);
+					ranges.add(new StreamRange(start, length, writer, () -> {
+						List<CompletableFuture<ByteBuffer>> decoded = new ArrayList<>();
+						for (int b = blocks[0]; b < blocks[1]; b++) {
+							BlockFrame.Entry entry = entries.get(b);
+							long index = b;
+							decoded.add(CompletableFuture.supplyAsync(() -> {
+								byte[] data = decode(index, index == entries.size() - 1, entry, writer.buffer, (int) (entry.getOffset() - start), codec);
+								hashes[(int) index] = new TreeHasher().update(data, 0, data.length).digest();
+								return ByteBuffer.wrap(data);
+							}, decoders));
+						}
+						return CompletableFuture.allOf(decoded.toArray(new CompletableFuture[0]))
+								.whenComplete((r, e) -> writer.release())
+								.thenApply(r -> {
+									List<ByteBuffer> content = new ArrayList<>();
+									decoded.forEach(d -> content.add(d.join()));
+									return content;
+								});
+					}));
+				}
+			}
 
-		RandomAccessFile output = new RandomAccessFile(target.toFile(), "rw");
+			List<byte[]> treeHashes = streamRanges(job, ranges, output, chunkSize, parallel, autotune);
+			if (treeHash != null && codec == null && !job.isSlice() && size > 0 && chunkSize >= MIN_PART_SIZE && Long.bitCount(chunkSize) == 1) {
+				verify(treeHashes, treeHash);
+			} else if (treeHash != null && codec != null) {
+				verifyBlocks(blockHashes, treeHash);
+			}
+		} finally {
+			decoders.shutdownNow();
+		}
 
-		long expectedChunks = Double.valueOf(Math.ceil(size / chunkSize)).longValue() + 1;
-		long currentChunks = 1;
-		long currentPos = 0;
-		while (currentPos < size) {
-			long pending = size - currentPos;
-			long toRead = Math.min(pending, chunkSize);
+		logger.info("Whole file has been written to the output");
+	}
 
+	/**
+	 * Downloads ranges at the same time, as many as the window allows, and writes them in order as soon as all ranges
+	 * before them are written. Tree hashes of the ranges are returned in order, null if any of them was not computed
+	 */
+	private List<byte[]> streamRanges(Job job, List<StreamRange> ranges, WritableByteChannel output, long chunkSize, int parallel, boolean autotune) throws Exception {
+		TransferWindow inFlight = new TransferWindow(parallel(parallel), maxConnections, autotune);
+		//ranges downloaded or in flight not written yet
+		Semaphore buffered = new Semaphore(bytesInFlight != null
+				? (int) Math.max(1, (long) bytesInFlightLimit * MIN_PART_SIZE / chunkSize)
+				: 2 * parallel(parallel));
+		Deque<CompletableFuture<List<ByteBuffer>>> pending = new ArrayDeque<>();
+		Deque<StreamRange> pendingRanges = new ArrayDeque<>();
+		List<TreeHashRangeWriter> hashes = new ArrayList<>();
+		int written = 0;
+		for (StreamRange range : ranges) {
+			while (!buffered.tryAcquire()) {
+				writeNext(pending, pendingRanges, output, buffered);
+				logger.info("Written part {}/{}", ++written, ranges.size());
+			}
+			TreeHashRangeWriter writer = range.start % MIN_PART_SIZE == 0 ? new TreeHashRangeWriter(range.writer) : null;
+			hashes.add(writer);
+			inFlight.acquire();
+			long started = System.nanoTime();
 			GetJobOutputRequest getJobOutputRequest = GetJobOutputRequest.builder()
 					.jobId(job.getJobId())
 					.vaultName(job.getVault())
-					.range("bytes=" + currentPos + "-" + (currentPos + toRead - 1))
+					.range("bytes=" + range.start + "-" + (range.start + range.length - 1))
 					.build();
+			pending.add(downloadRange(job, getJobOutputRequest, writer != null ? writer : range.writer, inFlight::congested)
+					.whenComplete((r, e) -> {
+						if (e == null) {
+							inFlight.completed(range.length, System.nanoTime() - started);
+						} else {
+							inFlight.failed();
+						}
+					})
+					.thenCompose(r -> range.content.get()));
+			pendingRanges.add(range);
+		}
+		while (!pending.isEmpty()) {
+			writeNext(pending, pendingRanges, output, buffered);
+			logger.info("Written part {}/{}", ++written, ranges.size());
+		}
 
-			ResponseInputStream<GetJobOutputResponse> getJobOutputResponse = glacier.getJobOutput(getJobOutputRequest);
-			appendToFile(output, getJobOutputResponse);
-			logger.info("Downloaded part {}/{}", currentChunks, expectedChunks);
-
-			currentPos += toRead;
-			currentChunks++;
+		List<byte[]> treeHashes = new ArrayList<>();
+		for (TreeHashRangeWriter writer : hashes) {
+			if (writer == null) {
+				return null;
+			}
+			treeHashes.add(writer.getTreeHash());
 		}
+		return treeHashes;
+	}
 
-		logger.info("Whole file has been downloaded into: {}", target);
+	private static void writeNext(Deque<CompletableFuture<List<ByteBuffer>>> pending, Deque<StreamRange> pendingRanges, WritableByteChannel output, Semaphore buffered) throws Exception {
+		List<ByteBuffer> content = await(pending.poll());
+		StreamRange range = pendingRanges.poll();
+		for (ByteBuffer buffer : content) {
+			while (buffer.hasRemaining()) {
+				output.write(buffer);
+			}
+		}
+		range.writer.release();
+		buffered.release();
 	}
 
+	/**
+	 * Rebuilds a deduplicated item from its chunks, retrieved by a job for each archive.
+	 * Consecutive chunks of the same archive are downloaded as a single range
+	 */
+	public void download(List<Item.ChunkRef> recipe, Map<String, Job> jobs, Path target, long chunkSize, int parallel, boolean autotune) throws Exception {
 
-	public Optional<StatusCode> getJobStatus(Job job) throws Exception {
+		chunkSize = rangeSize(chunkSize);
+
+		long size = 0;
+		for (Item.ChunkRef chunk : recipe) {
+			size += chunk.getLength();
+		}
+
+		try (FileChannel output = open(target, size)) {
+			List<Range> ranges = new ArrayList<>();
+			long currentPos = 0;
+			int i = 0;
+			while (i < recipe.size()) {
+				Item.ChunkRef first = recipe.get(i);
+				long length = first.getLength();
+				i++;
+				while (i < recipe.size() && length + recipe.get(i).getLength() <= chunkSize
+						&& recipe.get(i).getArchiveId().equals(first.getArchiveId())
+						&& recipe.get(i).getOffset() == first.getOffset() + length) {
+					length += recipe.get(i).getLength();
+					i++;
+				}
 
+				Job job = jobs.get(first.getArchiveId());
+				ranges.add(new Range(job, first.getOffset() - job.getRangeStart(), length, new FileRangeWriter(output, currentPos)));
+				currentPos += length;
+			}
+			List<String> jobIds = new ArrayList<>();
+			jobs.values().forEach(j -> jobIds.add(j.getJobId()));
+			Collections.sort(jobIds);
+			try (DownloadProgress progress = DownloadProgress.open(target, output, String.join(",", jobIds) + ":" + chunkSize, ranges.size())) {
+				downloadRanges(ranges, parallel, autotune, progress);
+				progress.completed();
+			}
+		}
+
+		logger.info("Whole file has been downloaded into: {}", target);
+	}
+
+	/**
+	 * Target of a download with its final size, so space is taken at once and a longer previous file does not keep its tail
+	 */
+	private static FileChannel open(Path target, long size) throws IOException {
+		FileChannel output = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
 		try {
-			GlacierClient glacier = getClient(job.getRegion());
+			if (output.size() > size) {
+				output.truncate(size);
+			} else if (output.size() < size) {
+				output.write(ByteBuffer.wrap(new byte[1]), size - 1);
+			}
+			return output;
+		} catch (IOException e) {
+			output.close();
+			throw e;
+		}
+	}
 
-			DescribeJobRequest describeJobRequest = DescribeJobRequest.builder()
-					.jobId(job.getJobId())
-					.vaultName(job.getVault())
+	/**
+	 * Downloads the ranges at the same time, bounded by the window. A failed range does not stop the others,
+	 * all of them are waited before reporting. Ranges downloaded by a previous run are skipped
+	 */
+	private void downloadRanges(List<Range> ranges, int parallel, boolean autotune, DownloadProgress progress) throws Exception {
+		if (progress.pending() < ranges.size()) {
+			logger.info("Resuming download, {} of {} parts already downloaded", ranges.size() - progress.pending(), ranges.size());
+		}
+		TransferWindow inFlight = new TransferWindow(parallel(parallel), maxConnections, autotune);
+		List<CompletableFuture<?>> downloads = new ArrayList<>();
+		AtomicLong downloaded = new AtomicLong(ranges.size() - progress.pending() + 1);
+		for (int i = 0; i < ranges.size(); i++) {
+			if (progress.isDone(i)) {
+				continue;
+			}
+			Range range = ranges.get(i);
+			int index = i;
+			//tree hash is computed from MB of the archive, Glacier computes it only for ranges starting at a MB
+			TreeHashRangeWriter writer = range.start % MIN_PART_SIZE == 0 ? new TreeHashRangeWriter(range.writer) : null;
+			inFlight.acquire();
+			long started = System.nanoTime();
+			GetJobOutputRequest getJobOutputRequest = GetJobOutputRequest.builder()
+					.jobId(range.job.getJobId())
+					.vaultName(range.job.getVault())
+					.range("bytes=" + range.start + "-" + (range.start + range.length - 1))
 					.build();
 
-			DescribeJobResponse describeJobResponse = glacier.describeJob(describeJobRequest);
-			return Optional.of(describeJobResponse.statusCode());
-		} catch (ResourceNotFoundException e) {
-			logger.info("Job is not available anymore. Create a new one");
-			return Optional.empty();
+			downloads.add(downloadRange(range.job, getJobOutputRequest, writer != null ? writer : range.writer, inFlight::congested)
+					.thenCompose(r -> range.finish.get())
+					//flushing to disk does not block the transfer threads
+					.thenRunAsync(() -> {
+						try {
+							progress.done(index, writer != null ? writer.getTreeHash() : null);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					})
+					.whenComplete((r, e) -> {
+						if (e == null) {
+							inFlight.completed(range.length, System.nanoTime() - started);
+							logger.info("Downloaded part {}/{}", downloaded.getAndIncrement(), ranges.size());
+						} else {
+							inFlight.failed();
+						}
+					}));
+		}
+
+		int failed = 0;
+		for (CompletableFuture<?> future : downloads) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				failed++;
+				logger.error("Range download failed: {}", cause(e).getMessage());
+			}
+		}
+		if (failed > 0) {
+			throw new Exception(failed + " of " + downloads.size() + " parts could not be downloaded. Download again to resume it");
+		}
+	}
+
+	/**
+	 * Range retried on its own, the writer discards what was received from a failed attempt.
+	 * A range the writer does not accept once received (tree hash mismatch) is retried too
+	 */
+	private CompletableFuture<GetJobOutputResponse> downloadRange(Job job, GetJobOutputRequest request, RangeWriter writer, Retry.CongestionListener listener) throws InterruptedException {
+		return Retry.withRetries("Range " + request.range(), metered(rangeLength(request.range()), () -> engine.downloadRange(job.getRegion(), request, writer)
+				.thenApply(r -> {
+					try {
+						writer.end(r.checksum());
+						return r;
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				})), listener);
+	}
+
+	/**
+	 * Downloads a range of the job output into memory
+	 */
+	private byte[] readRange(Job job, long start, long length) throws Exception {
+		BufferRangeWriter writer = new BufferRangeWriter((int) length);
+		GetJobOutputRequest getJobOutputRequest = GetJobOutputRequest.builder()
+				.jobId(job.getJobId())
+				.vaultName(job.getVault())
+				.range("bytes=" + start + "-" + (start + length - 1))
+				.build();
+		await(downloadRange(job, getJobOutputRequest, writer, () -> { }));
+		return writer.buffer;
+	}
+
+	/**
+	 * Range of a job output, and what to do once it is received
+	 */
+	private static class Range {
+
+		private final Job job;
+		private final long start;
+		private final long length;
+		private final RangeWriter writer;
+		private final Supplier<CompletableFuture<Void>> finish;
+
+		Range(Job job, long start, long length, RangeWriter writer) {
+			this(job, start, length, writer, () -> CompletableFuture.completedFuture(null));
+		}
+
+		Range(Job job, long start, long length, RangeWriter writer, Supplier<CompletableFuture<Void>> finish) {
+			this.job = job;
+			this.start = start;
+			this.length = length;
+			this.writer = writer;
+			this.finish = finish;
+		}
+	}
+
+	/**
+	 * Range of a job output streamed in order, and its content once it is received
+	 */
+	private static class StreamRange {
+
+		private final long start;
+		private final long length;
+		private final BufferRangeWriter writer;
+		private final Supplier<CompletableFuture<List<ByteBuffer>>> content;
+
+		StreamRange(long start, long length, BufferRangeWriter writer, Supplier<CompletableFuture<List<ByteBuffer>>> content) {
+			this.start = start;
+			this.length = length;
+			this.writer = writer;
+			this.content = content;
 		}
 	}
 
+	public Optional<StatusCode> getJobStatus(Job job) throws Exception {
+		return await(requestJobStatus(job));
+	}
+
+	/**
+	 * Status of the job without waiting for it, so status of many jobs can be requested at the same time.
+	 * Waits while there are as many requests in flight as connections
+	 */
+	public CompletableFuture<Optional<StatusCode>> requestJobStatus(Job job) throws InterruptedException {
+
+		DescribeJobRequest describeJobRequest = DescribeJobRequest.builder()
+				.jobId(job.getJobId())
+				.vaultName(job.getVault())
+				.build();
+
+		describes.acquire();
+		return engine.describeJob(job.getRegion(), describeJobRequest)
+				.whenComplete((r, e) -> describes.release())
+				.thenApply(r -> Optional.of(r.statusCode()))
+				.exceptionally(e -> {
+					if (cause(e) instanceof ResourceNotFoundException) {
+						logger.info("Job is not available anymore. Create a new one");
+						return Optional.empty();
+					}
+					throw new CompletionException(cause(e));
+				});
+	}
+
 	public Optional<Boolean> isReadyDownload(Job job) throws Exception {
 		return getJobStatus(job).map( s -> s == StatusCode.SUCCEEDED);
 	}
 
-	public void remove(Item item) {
+	public void remove(String archiveId, String vault, String region) {
 
 		try {
-			GlacierClient glacier = getClient(item.getRegion());
+			GlacierClient glacier = getClient(region);
 
 			DeleteArchiveRequest deleteArchiveRequest = DeleteArchiveRequest.builder()
-					.archiveId(item.getArchiveId())
-					.vaultName(item.getVault()).build();
+					.archiveId(archiveId)
+					.vaultName(vault).build();
 
 			glacier.deleteArchive(deleteArchiveRequest);
 		} catch (ResourceNotFoundException e) {
-			logger.info("Item {} it wasn't on Glacier", item.getName());
+			logger.info("Archive {} it wasn't on Glacier", archiveId);
 		}
 	}
 
 	private GlacierClient getClient(String region) {
-		return GlacierClient.builder()
-				.credentialsProvider(awsCredentialsProvider)
-				.region(Region.of(region))
-				.build();
+		return clients.get(region);
+	}
+
+	@Override
+	public void close() {
+		engine.close();
+		clients.close();
+	}
+
+	private static Throwable cause(Throwable e) {
+		while ((e instanceof ExecutionException || e instanceof CompletionException) && e.getCause() != null) {
+			e = e.getCause();
+		}
+		return e;
+	}
+
+	private static <T> T await(CompletableFuture<T> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = cause(e);
+			throw cause instanceof Exception ? (Exception) cause : e;
+		}
 	}
 
 	/**
-	 * Writes the data from the given input stream to the given output stream.
+	 * Writes a range at its position of the target file
 	 */
-	private void appendToFile(RandomAccessFile output, InputStream input) throws IOException {
-		byte[] buffer = new byte[1024 * 1024];
-		int bytesRead = 0;
-		do {
-			bytesRead = input.read(buffer);
-			if (bytesRead < 0) {
-				break;
+	private static class FileRangeWriter implements RangeWriter {
+
+		private final FileChannel output;
+		private final long start;
+		private long written;
+
+		FileRangeWriter(FileChannel output, long start) {
+			this.output = output;
+			this.start = start;
+		}
+
+		@Override
+		public void start() {
+			written = 0;
+		}
+
+		@Override
+		public void write(ByteBuffer data) throws IOException {
+			while (data.hasRemaining()) {
+				written += output.write(data, start + written);
+			}
+		}
+	}
+
+	/**
+	 * Keeps the range in memory, the buffer is taken when the range starts to be received,
+	 * from the pool if there is one big enough
+	 */
+	private static class BufferRangeWriter implements RangeWriter {
+
+		private final int length;
+		private final Queue<byte[]> pool;
+		private byte[] buffer;
+		private int written;
+
+		BufferRangeWriter(int length) {
+			this(length, null);
+		}
+
+		BufferRangeWriter(int length, Queue<byte[]> pool) {
+			this.length = length;
+			this.pool = pool;
+		}
+
+		@Override
+		public void start() {
+			if (buffer == null && pool != null) {
+				buffer = pool.poll();
+			}
+			if (buffer == null || buffer.length < length) {
+				buffer = new byte[length];
+			}
+			written = 0;
+		}
+
+		@Override
+		public void write(ByteBuffer data) {
+			int n = data.remaining();
+			data.get(buffer, written, n);
+			written += n;
+		}
+
+		void release() {
+			if (pool != null && buffer != null) {
+				pool.offer(buffer);
 			}
-			output.write(buffer, 0, bytesRead);
-		} while (bytesRead > 0);
-		return;
+			buffer = null;
+		}
 	}
 
-	private int chunkSize(int chunkSize) {
+	long chunkSize(long chunkSize) {
 		return chunkSize == 0 ? defaultChunkSize : chunkSize;
 	}
+
+	/**
+	 * Range size to download: requested one (or default), a whole number of MB so ranges are tree hash aligned
+	 */
+	long rangeSize(long requested) {
+		long rangeSize = chunkSize(requested);
+		if (rangeSize <= 0 || rangeSize % MIN_PART_SIZE != 0) {
+			throw new IllegalArgumentException("Chunk size must be a whole number of MB");
+		}
+		return rangeSize;
+	}
+
+	/**
+	 * Ranges kept in memory till they are decoded or written in order are not bigger than a window
+	 */
+	static long bufferedRangeSize(long rangeSize) {
+		if (rangeSize > FileChunker.MAX_WINDOW) {
+			logger.info("Chunk size reduced to {}MB, ranges are kept in memory", FileChunker.MAX_WINDOW / MIN_PART_SIZE);
+			return FileChunker.MAX_WINDOW;
+		}
+		return rangeSize;
+	}
+
+	/**
+	 * Part size to upload an archive: requested one (or default) if the archive fits in the max number of parts,
+	 * otherwise the smallest power of 2 that fits it. Archive size is -1 when it is not known
+	 */
+	long partSize(long requested, long archiveSize) {
+		long partSize = chunkSize(requested);
+		if (partSize < MIN_PART_SIZE || partSize > MAX_PART_SIZE || Long.bitCount(partSize) != 1) {
+			throw new IllegalArgumentException("Chunk size must be a power of 2 between 1 and 4096 MB");
+		}
+
+		long needed = MIN_PART_SIZE;
+		while (needed * MAX_PARTS < archiveSize) {
+			needed *= 2;
+		}
+		if (needed > MAX_PART_SIZE) {
+			throw new IllegalArgumentException("File is bigger than the max archive size");
+		}
+		if (needed > partSize) {
+			logger.info("Chunk size increased to {}MB, file does not fit in {} chunks of {}MB", needed / MIN_PART_SIZE, MAX_PARTS, partSize / MIN_PART_SIZE);
+			partSize = needed;
+		}
+		return partSize;
+	}
+
+	private int parallel(int parallel) {
+		return parallel <= 0 ? defaultParallel : parallel;
+	}
 }
\ No newline at end of file
@@ -1,18 +1,243 @@
 package cat.altimiras.glacier.backupper;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
 
+/**
+ * Items, jobs and uploads stored in the inventory file, with indexes by every key they are looked up by.
+ * Indexes are not stored, they are built once the inventory is read and kept up to date by every change
+ */
 class Inventory {
 
-	private List<Item> items = new ArrayList<>();
-	private List<Job> jobs = new ArrayList<>();
+	//last change of the journal included
+	private long sequence;
 
-	public List<Item> getItems() {
-		return items;
+	private LinkedHashSet<Item> items = new LinkedHashSet<>();
+	private LinkedHashSet<Job> jobs = new LinkedHashSet<>();
+	//multipart uploads in progress, a few at most
+	private List<PendingUpload> uploads = new ArrayList<>();
+	//chunks of deduplicated items by region, vault and hash
+	private Map<String, Item.ChunkRef> chunks = new HashMap<>();
+
+	private transient Map<String, Item> itemsById = new HashMap<>();
+	//versions of a name in upload order
+	private transient Map<String, List<Item>> itemsByName = new HashMap<>();
+	private transient Map<String, List<Item>> itemsByChecksum = new HashMap<>();
+	//items uploaded as a single archive, not packed nor encoded
+	private transient Map<String, List<Item>> itemsByTreeHash = new HashMap<>();
+	private transient Map<String, List<Item>> itemsByArchive = new HashMap<>();
+	private transient Map<String, Job> jobsById = new HashMap<>();
+	private transient Map<String, List<Job>> jobsByName = new HashMap<>();
+	private transient Map<String, List<PendingUpload>> uploadsByChecksum = new HashMap<>();
+	private transient Map<String, List<String>> chunksByArchive = new HashMap<>();
+
+	/**
+	 * Builds the indexes of an inventory just read
+	 */
+	void index() {
+		itemsById = new HashMap<>();
+		itemsByName = new HashMap<>();
+		itemsByChecksum = new HashMap<>();
+		itemsByTreeHash = new HashMap<>();
+		itemsByArchive = new HashMap<>();
+		jobsById = new HashMap<>();
+		jobsByName = new HashMap<>();
+		uploadsByChecksum = new HashMap<>();
+		chunksByArchive = new HashMap<>();
+		items.forEach(this::indexItem);
+		jobs.forEach(this::indexJob);
+		uploads.forEach(u -> add(uploadsByChecksum, u.getChecksum(), u));
+		chunks.forEach((key, chunk) -> add(chunksByArchive, chunk.getArchiveId(), key));
+	}
+
+	Collection<Item> getItems() {
+		return Collections.unmodifiableCollection(items);
+	}
+
+	void addItem(Item i) {
+		if (items.add(i)) {
+			indexItem(i);
+		}
+	}
+
+	/**
+	 * Removes the item with the same id, the instance stored can be other than the one given
+	 */
+	void removeItem(Item removed) {
+		Item i = itemsById.remove(removed.getId());
+		if (i != null) {
+			items.remove(i);
+			remove(itemsByName, i.getName(), i);
+			remove(itemsByChecksum, i.getChecksum(), i);
+			if (isSingleArchive(i)) {
+				remove(itemsByTreeHash, i.getTreeHash(), i);
+			}
+			for (String archiveId : i.getArchives()) {
+				remove(itemsByArchive, archiveId, i);
+			}
+		}
+	}
+
+	List<Item> findItemsByName(String name) {
+		return find(itemsByName, name);
+	}
+
+	List<Item> findItemsByChecksum(String checksum) {
+		return find(itemsByChecksum, checksum);
+	}
+
+	List<Item> findItemsByTreeHash(String treeHash) {
+		return find(itemsByTreeHash, treeHash);
+	}
+
+	List<Item> findItemsByArchive(String archiveId) {
+		return find(itemsByArchive, archiveId);
+	}
+
+	Collection<Job> getJobs() {
+		return Collections.unmodifiableCollection(jobs);
+	}
+
+	void addJob(Job j) {
+		if (jobs.add(j)) {
+			indexJob(j);
+		}
+	}
+
+	void removeJob(String jobId) {
+		Job j = jobsById.remove(jobId);
+		if (j != null) {
+			jobs.remove(j);
+			remove(jobsByName, j.getName(), j);
+		}
+	}
+
+	Optional<Job> findJob(String jobId) {
+		return Optional.ofNullable(jobsById.get(jobId));
+	}
+
+	List<Job> findJobsByName(String name) {
+		return find(jobsByName, name);
+	}
+
+	/**
+	 * An upload started again replaces the previous state of the same file
+	 */
+	void addUpload(PendingUpload upload) {
+		for (PendingUpload u : find(uploadsByChecksum, upload.getChecksum())) {
+			if (u == upload || (Objects.equals(u.getVault(), upload.getVault()) && Objects.equals(u.getRegion(), upload.getRegion()))) {
+				removeUpload(u);
+			}
+		}
+		uploads.add(upload);
+		add(uploadsByChecksum, upload.getChecksum(), upload);
+	}
+
+	void removeUpload(String uploadId) {
+		for (PendingUpload u : new ArrayList<>(uploads)) {
+			if (Objects.equals(uploadId, u.getUploadId())) {
+				removeUpload(u);
+			}
+		}
+	}
+
+	Optional<PendingUpload> findUpload(String uploadId) {
+		for (PendingUpload u : uploads) {
+			if (uploadId.equals(u.getUploadId())) {
+				return Optional.of(u);
+			}
+		}
+		return Optional.empty();
+	}
+
+	List<PendingUpload> findUploadsByChecksum(String checksum) {
+		return find(uploadsByChecksum, checksum);
+	}
+
+	void addChunk(String vault, String region, Item.ChunkRef chunk) {
+		String key = chunkKey(vault, region, chunk.getHash());
+		if (chunks.putIfAbsent(key, chunk) == null) {
+			add(chunksByArchive, chunk.getArchiveId(), key);
+		}
+	}
+
+	/**
+	 * Forgets the chunks stored in a deleted archive
+	 */
+	void removeChunks(String archiveId) {
+		List<String> keys = chunksByArchive.remove(archiveId);
+		if (keys != null) {
+			keys.forEach(chunks::remove);
+		}
+	}
+
+	Optional<Item.ChunkRef> findChunk(String vault, String region, String hash) {
+		return Optional.ofNullable(chunks.get(chunkKey(vault, region, hash)));
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	static String chunkKey(String vault, String region, String hash) {
+		return region + ":" + vault + ":" + hash;
+	}
+
+	private void indexItem(Item i) {
+		itemsById.put(i.getId(), i);
+		add(itemsByName, i.getName(), i);
+		add(itemsByChecksum, i.getChecksum(), i);
+		if (isSingleArchive(i)) {
+			add(itemsByTreeHash, i.getTreeHash(), i);
+		}
+		for (String archiveId : i.getArchives()) {
+			add(itemsByArchive, archiveId, i);
+		}
+	}
+
+	private void indexJob(Job j) {
+		jobsById.put(j.getJobId(), j);
+		add(jobsByName, j.getName(), j);
+	}
+
+	private void removeUpload(PendingUpload u) {
+		uploads.remove(u);
+		remove(uploadsByChecksum, u.getChecksum(), u);
+	}
+
+	private static boolean isSingleArchive(Item i) {
+		return i.getTreeHash() != null && i.getCodec() == null && !i.isPacked() && !i.isDeduplicated();
+	}
+
+	private static <T> void add(Map<String, List<T>> index, String key, T value) {
+		if (key != null) {
+			index.computeIfAbsent(key, k -> new ArrayList<>(1)).add(value);
+		}
+	}
+
+	private static <T> void remove(Map<String, List<T>> index, String key, T value) {
+		List<T> values = key == null ? null : index.get(key);
+		if (values != null) {
+			values.remove(value);
+			if (values.isEmpty()) {
+				index.remove(key);
+			}
+		}
 	}
 
-	public List<Job> getJobs() {
-		return jobs;
+	private static <T> List<T> find(Map<String, List<T>> index, String key) {
+		List<T> values = index.get(key);
+		return values == null ? Collections.emptyList() : new ArrayList<>(values);
 	}
 }
@@ -1,26 +1,80 @@
 package cat.altimiras.glacier.backupper;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 interface InventoryManager {
 
 	void addItem(Item i) throws Exception;
 
+	/**
+	 * Adds the items and removes the pending uploads completed by them in a single update.
+	 * Chunks of deduplicated items are indexed to be reused
+	 */
+	void addUploadedItems(Collection<Item> items, Collection<PendingUpload> completed) throws Exception;
+
 	void removeItem(Item i) throws Exception;
 
+	/**
+	 * Removes the item and forgets the chunks stored in the archives deleted with it
+	 */
+	void removeItem(Item i, Collection<String> deletedArchives) throws Exception;
+
 	void addJob(Job j) throws Exception;
 
 	void removeJob(Job j) throws Exception;
 
 	void markJobChecked(Job job) throws Exception;
 
+	void addUpload(PendingUpload u) throws Exception;
+
+	void removeUpload(PendingUpload u) throws Exception;
+
+	void markPartUploaded(PendingUpload u, PendingUpload.Part part) throws Exception;
+
 	Iterable<Item> getItems();
 
 	Iterable<Job> getJobs();
 
+	/**
+	 * Last version uploaded with the name
+	 */
 	Optional<Item> findItemByName(String name);
 
+	/**
+	 * Every version uploaded with the name, the oldest first
+	 */
+	List<Item> findItemsByName(String name);
+
 	Optional<Item> findItemByChecksum(String checksum);
 
-	Optional<Job> findJobByName(String name);
+	/**
+	 * Item uploaded as a single archive, not packed nor encoded, with the tree hash
+	 */
+	Optional<Item> findItemByTreeHash(String treeHash);
+
+	/**
+	 * Items stored, whole or in part, in the archive
+	 */
+	List<Item> findItemsByArchive(String archiveId);
+
+	/**
+	 * Job retrieving the archive of this version of the item, jobs of other versions with the same name are not
+	 */
+	Optional<Job> findJob(Item item);
+
+	List<Job> findJobsByName(String name);
+
+	Optional<Item.ChunkRef> findChunk(String vault, String region, String hash);
+
+	/**
+	 * Copy of the pending upload, changes to it are stored by addUpload and markPartUploaded
+	 */
+	Optional<PendingUpload> findUploadByChecksum(String checksum);
+
+	/**
+	 * Every change is on disk once closed
+	 */
+	void close() throws Exception;
 }
\ No newline at end of file
@@ -3,55 +3,136 @@ package cat.altimiras.glacier.backupper;
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Inventory kept in a JSON snapshot plus a journal of the changes made after it, one JSON line by change. A change
+ * is appended to the journal instead of writing the whole inventory again, and the journal is folded into a new
+ * snapshot once it grows larger than the snapshot.
+ * The journal is forced to disk at most once a second, by the next change or by a flusher when no change comes, so a
+ * crash of the process loses nothing but a power loss can lose the changes of the last second. A line half written by a crash is discarded when the journal is read again
+ */
 class InventoryManagerJson implements InventoryManager {
 
+	final static Logger logger = LoggerFactory.getLogger(InventoryManagerJson.class);
+
+	//journal is not compacted before it reaches this size, even if the snapshot is smaller
+	private static final long MIN_COMPACT_SIZE = 4 * 1024 * 1024;
+
+	private static final long SYNC_MILLIS = 1000;
+
 	final private ObjectMapper objectMapper;
+	final private ObjectWriter journalWriter;
 	final private Path path;
+	final private Path journalPath;
+	final private Path tmp;
 	private Inventory inventory;
+	private FileChannel journal;
+	private long journalSize;
+	private long snapshotSize;
+	//last change appended to the journal
+	private long sequence;
+	private long lastSync;
+	private boolean synced = true;
+	private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "journal-flusher");
+		t.setDaemon(true);
+		return t;
+	});
 
 	InventoryManagerJson(Path path) throws Exception {
 		this.objectMapper = new ObjectMapper();
 		this.objectMapper.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE);
 		this.objectMapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
 		this.objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
+		this.journalWriter = objectMapper.writer().without(SerializationFeature.INDENT_OUTPUT);
 		this.path = path;
+		this.journalPath = path.resolveSibling(path.getFileName() + ".journal");
+		this.tmp = path.resolveSibling(path.getFileName() + ".tmp");
 
 		this.inventory = read();
+		this.sequence = inventory.getSequence();
+		this.snapshotSize = Files.exists(path) ? Files.size(path) : 0;
+		this.journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		replay();
+		this.lastSync = System.currentTimeMillis();
+		if (needsCompaction()) {
+			compact();
+		}
+		flusher.scheduleWithFixedDelay(this::flush, SYNC_MILLIS, SYNC_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void addItem(Item i) throws Exception {
+		apply(InventoryMutation.addItems(Collections.singletonList(i), Collections.emptyList()));
+	}
+
+	public synchronized void addUploadedItems(Collection<Item> items, Collection<PendingUpload> completed) throws Exception {
+		apply(InventoryMutation.addItems(items, completed));
 	}
 
-	public void addItem(Item i) throws Exception {
-		this.inventory.getItems().add(i);
-		store();
+	public synchronized void removeItem(Item i) throws Exception {
+		apply(InventoryMutation.removeItem(i, null));
 	}
 
-	public void removeItem(Item i) throws Exception {
-		this.inventory.getItems().remove(i);
-		store();
+	public synchronized void removeItem(Item i, Collection<String> deletedArchives) throws Exception {
+		apply(InventoryMutation.removeItem(i, deletedArchives));
 	}
 
-	public void addJob(Job j) throws Exception {
-		this.inventory.getJobs().add(j);
-		store();
+	public synchronized void addJob(Job j) throws Exception {
+		apply(InventoryMutation.addJob(j));
 	}
 
-	public void removeJob(Job j) throws Exception {
-		this.inventory.getJobs().remove(j);
-		store();
+	public synchronized void removeJob(Job j) throws Exception {
+		apply(InventoryMutation.removeJob(j));
 	}
 
-	public void markJobChecked(Job job) throws Exception {
-		Optional<Job> jobInv =findJobByName(job.getName());
+	public synchronized void markJobChecked(Job job) throws Exception {
+		Optional<Job> jobInv = this.inventory.findJob(job.getJobId());
 		if (jobInv.isPresent()){
-			jobInv.get().setLastStatus(new Date());
-			store();
+			apply(InventoryMutation.jobChecked(jobInv.get(), new Date()));
+		}
+	}
+
+	public synchronized void addUpload(PendingUpload u) throws Exception {
+		apply(InventoryMutation.addUpload(u));
+	}
+
+	public synchronized void removeUpload(PendingUpload u) throws Exception {
+		apply(InventoryMutation.removeUpload(u));
+	}
+
+	//called from upload workers, each uploaded part is in the journal before the next one is recorded
+	public synchronized void markPartUploaded(PendingUpload u, PendingUpload.Part part) throws Exception {
+		apply(InventoryMutation.partUploaded(u, part));
+	}
+
+	/**
+	 * Forces the journal to disk, the inventory can not be changed anymore
+	 */
+	public synchronized void close() throws Exception {
+		flusher.shutdown();
+		if (journal.isOpen()) {
+			journal.force(false);
+			journal.close();
 		}
 	}
 
@@ -63,43 +144,173 @@ class InventoryManagerJson implements InventoryManager {
 		return this.inventory.getJobs();
 	}
 
-	public Optional<Item> findItemByName(String name) {
-		for (Item i : this.inventory.getItems()) {
-			if (i.getName().equals(name)) {
-				return Optional.of(i);
-			}
-		}
-		return Optional.empty();
+	public synchronized Optional<Item> findItemByName(String name) {
+		List<Item> versions = this.inventory.findItemsByName(name);
+		return versions.isEmpty() ? Optional.empty() : Optional.of(versions.get(versions.size() - 1));
 	}
 
-	public Optional<Item> findItemByChecksum(String checksum) {
-		for (Item i : this.inventory.getItems()) {
-			if (i.getChecksum().equals(checksum)) {
-				return Optional.of(i);
-			}
-		}
-		return Optional.empty();
+	public synchronized List<Item> findItemsByName(String name) {
+		return this.inventory.findItemsByName(name);
 	}
 
-	public Optional<Job> findJobByName(String name) {
-		for (Job j : this.inventory.getJobs()) {
-			if (j.getName().equals(name)) {
-				return Optional.of(j);
-			}
-		}
-		return Optional.empty();
+	public synchronized Optional<Item> findItemByChecksum(String checksum) {
+		return this.inventory.findItemsByChecksum(checksum).stream().findFirst();
+	}
+
+	public synchronized Optional<Item> findItemByTreeHash(String treeHash) {
+		return this.inventory.findItemsByTreeHash(treeHash).stream().findFirst();
+	}
+
+	public synchronized List<Item> findItemsByArchive(String archiveId) {
+		return this.inventory.findItemsByArchive(archiveId);
+	}
+
+	public synchronized Optional<Job> findJob(Item item) {
+		return this.inventory.findJobsByName(item.getName()).stream()
+				.filter(j -> j.getArchiveId() != null && j.getArchiveId().equals(item.getArchiveId()))
+				.findFirst();
+	}
+
+	public synchronized List<Job> findJobsByName(String name) {
+		return this.inventory.findJobsByName(name);
+	}
+
+	public synchronized Optional<Item.ChunkRef> findChunk(String vault, String region, String hash) {
+		return this.inventory.findChunk(vault, region, hash);
+	}
+
+	public synchronized Optional<PendingUpload> findUploadByChecksum(String checksum) {
+		return this.inventory.findUploadsByChecksum(checksum).stream().findFirst().map(PendingUpload::copy);
 	}
 
 	private Inventory read() throws Exception {
 		if (Files.exists(path)) {
-			return objectMapper.readValue(Files.readAllBytes(path), Inventory.class);
+			Inventory read = objectMapper.readValue(Files.readAllBytes(path), Inventory.class);
+			read.index();
+			return read;
 		} else {
 			return new Inventory();
 		}
 	}
 
-	private void store() throws Exception {
+	/**
+	 * Applies the changes of the journal not included in the snapshot yet. A last line not complete is a change
+	 * interrupted by a crash and it is cut off, any other line that can not be read is an error
+	 */
+	private void replay() throws Exception {
+		byte[] content = Files.readAllBytes(journalPath);
+		int start = 0;
+		int line = 1;
+		while (start < content.length) {
+			int end = start;
+			while (end < content.length && content[end] != '\n') {
+				end++;
+			}
+			InventoryMutation mutation = null;
+			if (end < content.length) {
+				try {
+					mutation = objectMapper.readValue(content, start, end - start, InventoryMutation.class);
+				} catch (IOException e) {
+					if (end + 1 < content.length) {
+						throw new IllegalStateException("Journal " + journalPath + " is corrupted at line " + line + ": " + e.getMessage());
+					}
+				}
+			}
+			if (mutation == null) {
+				logger.info("Last change of journal {} was not complete, it is discarded", journalPath);
+				journal.truncate(start);
+				journal.force(false);
+				break;
+			}
+			if (mutation.getSequence() > sequence) {
+				mutation.applyTo(inventory);
+				sequence = mutation.getSequence();
+			}
+			start = end + 1;
+			line++;
+		}
+		journalSize = journal.size();
+	}
+
+	private void apply(InventoryMutation mutation) throws Exception {
+		mutation.setSequence(sequence + 1);
+		byte[] line = journalWriter.writeValueAsBytes(mutation);
+		ByteBuffer buffer = ByteBuffer.allocate(line.length + 1);
+		buffer.put(line).put((byte) '\n').flip();
+		while (buffer.hasRemaining()) {
+			journal.write(buffer);
+		}
+		sequence++;
+		journalSize += line.length + 1;
+		mutation.applyTo(inventory);
+
+		if (needsCompaction()) {
+			compact();
+		} else {
+			synced = false;
+			sync();
+		}
+	}
+
+	//changes made in the same second are forced together
+	private void sync() throws IOException {
+		long now = System.currentTimeMillis();
+		if (!synced && now - lastSync >= SYNC_MILLIS) {
+			journal.force(false);
+			lastSync = now;
+			synced = true;
+		}
+	}
+
+	//last changes are forced even if no other change comes after them
+	private synchronized void flush() {
+		if (!synced && journal.isOpen()) {
+			try {
+				journal.force(false);
+				lastSync = System.currentTimeMillis();
+				synced = true;
+			} catch (IOException e) {
+				logger.error("Journal {} could not be forced to disk: {}", journalPath, e.getMessage());
+			}
+		}
+	}
+
+	private boolean needsCompaction() {
+		return journalSize > Math.max(MIN_COMPACT_SIZE, snapshotSize);
+	}
+
+	/**
+	 * Writes a new snapshot with all the changes and empties the journal. The snapshot replaces the previous one at
+	 * once and it is on disk before the journal is emptied, a crash in between replays changes already in the snapshot,
+	 * skipped by its sequence
+	 */
+	private void compact() throws Exception {
+		inventory.setSequence(sequence);
 		byte[] content = objectMapper.writeValueAsBytes(inventory);
-		Files.write(path, content, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.wrap(content);
+			while (buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+			out.force(true);
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory();
+		journal.truncate(0);
+		journal.force(true);
+		snapshotSize = content.length;
+		journalSize = 0;
+		lastSync = System.currentTimeMillis();
+		synced = true;
+	}
+
+	//the rename is on disk once its directory is, not every platform can open a directory to force it
+	private void syncDirectory() {
+		Path dir = path.toAbsolutePath().getParent();
+		try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			logger.debug("Directory {} can not be forced: {}", dir, e.getMessage());
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,157 @@
+package cat.altimiras.glacier.backupper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Change of the inventory, appended to the journal. The same change is applied when it is made and when the
+ * journal is replayed, so uploads and jobs are found by its ids, not by instance
+ */
+class InventoryMutation {
+
+	enum Operation {
+		ADD_ITEMS, REMOVE_ITEM, ADD_JOB, REMOVE_JOB, JOB_CHECKED, ADD_UPLOAD, REMOVE_UPLOAD, PART_UPLOADED
+	}
+
+	private long sequence;
+	private Operation operation;
+	private List<Item> items;
+	//ids of uploads completed by the items, or removed upload
+	private List<String> uploadIds;
+	//archives deleted with the removed item
+	private List<String> archives;
+	private Job job;
+	private String jobId;
+	private Date date;
+	private PendingUpload upload;
+	private PendingUpload.Part part;
+	//parts in flight when the part was uploaded, the upload is resumed with them
+	private Integer parallel;
+
+	public InventoryMutation() {
+	}
+
+	private InventoryMutation(Operation operation) {
+		this.operation = operation;
+	}
+
+	static InventoryMutation addItems(Collection<Item> items, Collection<PendingUpload> completed) {
+		InventoryMutation m = new InventoryMutation(Operation.ADD_ITEMS);
+		m.items = new ArrayList<>(items);
+		m.uploadIds = new ArrayList<>();
+		for (PendingUpload u : completed) {
+			m.uploadIds.add(u.getUploadId());
+		}
+		return m;
+	}
+
+	static InventoryMutation removeItem(Item item, Collection<String> deletedArchives) {
+		InventoryMutation m = new InventoryMutation(Operation.REMOVE_ITEM);
+		m.items = new ArrayList<>();
+		m.items.add(item);
+		m.archives = deletedArchives == null ? null : new ArrayList<>(deletedArchives);
+		return m;
+	}
+
+	static InventoryMutation addJob(Job job) {
+		InventoryMutation m = new InventoryMutation(Operation.ADD_JOB);
+		m.job = job;
+		return m;
+	}
+
+	static InventoryMutation removeJob(Job job) {
+		InventoryMutation m = new InventoryMutation(Operation.REMOVE_JOB);
+		m.jobId = job.getJobId();
+		return m;
+	}
+
+	static InventoryMutation jobChecked(Job job, Date date) {
+		InventoryMutation m = new InventoryMutation(Operation.JOB_CHECKED);
+		m.jobId = job.getJobId();
+		m.date = date;
+		return m;
+	}
+
+	static InventoryMutation addUpload(PendingUpload upload) {
+		InventoryMutation m = new InventoryMutation(Operation.ADD_UPLOAD);
+		//the caller keeps changing its own instance while uploading
+		m.upload = upload.copy();
+		return m;
+	}
+
+	static InventoryMutation removeUpload(PendingUpload upload) {
+		InventoryMutation m = new InventoryMutation(Operation.REMOVE_UPLOAD);
+		m.uploadIds = new ArrayList<>();
+		m.uploadIds.add(upload.getUploadId());
+		return m;
+	}
+
+	static InventoryMutation partUploaded(PendingUpload upload, PendingUpload.Part part) {
+		InventoryMutation m = new InventoryMutation(Operation.PART_UPLOADED);
+		m.uploadIds = new ArrayList<>();
+		m.uploadIds.add(upload.getUploadId());
+		m.part = part;
+		m.parallel = upload.getParallel();
+		return m;
+	}
+
+	long getSequence() {
+		return sequence;
+	}
+
+	void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	void applyTo(Inventory inventory) {
+		switch (operation) {
+			case ADD_ITEMS:
+				for (Item i : items) {
+					inventory.addItem(i);
+					if (i.isDeduplicated()) {
+						for (Item.ChunkRef chunk : i.getRecipe()) {
+							inventory.addChunk(i.getVault(), i.getRegion(), chunk);
+						}
+					}
+				}
+				for (String uploadId : uploadIds) {
+					inventory.removeUpload(uploadId);
+				}
+				break;
+			case REMOVE_ITEM:
+				inventory.removeItem(items.get(0));
+				if (archives != null) {
+					for (String archiveId : archives) {
+						inventory.removeChunks(archiveId);
+					}
+				}
+				break;
+			case ADD_JOB:
+				inventory.addJob(job);
+				break;
+			case REMOVE_JOB:
+				inventory.removeJob(jobId);
+				break;
+			case JOB_CHECKED:
+				inventory.findJob(jobId).ifPresent(j -> j.setLastStatus(date));
+				break;
+			case ADD_UPLOAD:
+				inventory.addUpload(upload);
+				break;
+			case REMOVE_UPLOAD:
+				inventory.removeUpload(uploadIds.get(0));
+				break;
+			case PART_UPLOADED:
+				inventory.findUpload(uploadIds.get(0)).ifPresent(u -> {
+					u.getParts().add(part);
+					//lines written before it was recorded do not have it
+					if (parallel != null) {
+						u.setParallel(parallel);
+					}
+				});
+				break;
+		}
+	}
+}
@@ -1,22 +1,39 @@
 package cat.altimiras.glacier.backupper;
 
 import java.util.Date;
-import java.util.Objects;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
 
 class Item {
 
+	//every upload is an item of its own, even with the same name and content
+	private String id;
 	private String name;
 	private Date uploadDate;
 	private String archiveId;
 	private String checksum;
+	private String treeHash;
 	private long size;
 	private String vault;
 	private String region;
+	//packed items are a slice of a pack archive shared with other items
+	private boolean packed;
+	private long offset;
+	private long archiveSize;
+	//deduplicated items are made of chunks stored in one or more archives, in order
+	private List<ChunkRef> recipe;
+	//encoded items are stored as a BlockFrame, size is the original one
+	private String codec;
+	private long storedSize;
+	private Encryption encryption;
 
 	public Item() {
 	}
 
-	public Item(String name, String checksum, String archiveId, long size, String vault, String region) {
+	public Item(String name, String checksum, String archiveId, long size, String treeHash, String vault, String region) {
+		this.id = UUID.randomUUID().toString();
 		this.name = name;
 		this.uploadDate = new Date();
 		this.size = size;
@@ -24,6 +41,24 @@ class Item {
 		this.region = region;
 		this.archiveId = archiveId;
 		this.checksum = checksum;
+		this.treeHash = treeHash;
+	}
+
+	public Item(String name, String checksum, String archiveId, long offset, long size, long archiveSize, String vault, String region) {
+		this(name, checksum, archiveId, size, (String) null, vault, region);
+		this.packed = true;
+		this.offset = offset;
+		this.archiveSize = archiveSize;
+	}
+
+	/**
+	 * Items stored before they had an id are identified by their name, upload date and place in the archive
+	 */
+	public String getId() {
+		if (id == null) {
+			id = name + ":" + (uploadDate == null ? 0 : uploadDate.getTime()) + ":" + archiveId + ":" + offset;
+		}
+		return id;
 	}
 
 	public String getName() {
@@ -54,29 +89,182 @@ class Item {
 		return checksum;
 	}
 
+	public String getTreeHash() {
+		return treeHash;
+	}
+
+	public Item(String name, String checksum, String archiveId, long size, List<ChunkRef> recipe, String vault, String region) {
+		this(name, checksum, archiveId, size, (String) null, vault, region);
+		this.recipe = recipe;
+	}
+
+	public Item(String name, String checksum, String archiveId, long size, String treeHash, String vault, String region, String codec, long storedSize, Encryption encryption) {
+		this(name, checksum, archiveId, size, treeHash, vault, region);
+		this.codec = codec;
+		this.storedSize = storedSize;
+		this.encryption = encryption;
+	}
+
+	public Encryption getEncryption() {
+		return encryption;
+	}
+
+	public String getCodec() {
+		return codec;
+	}
+
+	public long getStoredSize() {
+		return codec == null ? size : storedSize;
+	}
+
+	public boolean isDeduplicated() {
+		return recipe != null;
+	}
+
+	public List<ChunkRef> getRecipe() {
+		return recipe;
+	}
+
+	/**
+	 * Archives with content of this item
+	 */
+	public Set<String> getArchives() {
+		Set<String> archives = new LinkedHashSet<>();
+		if (archiveId != null) {
+			archives.add(archiveId);
+		}
+		if (recipe != null) {
+			for (ChunkRef chunk : recipe) {
+				archives.add(chunk.getArchiveId());
+			}
+		}
+		return archives;
+	}
+
+	public boolean isPacked() {
+		return packed;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public long getArchiveSize() {
+		return archiveSize;
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (this == o) return true;
 		if (o == null || getClass() != o.getClass()) return false;
 		Item item = (Item) o;
-		return Objects.equals(archiveId, item.archiveId);
+		return getId().equals(item.getId());
 	}
 
 	@Override
 	public int hashCode() {
-		return Objects.hash(archiveId);
+		return getId().hashCode();
 	}
 
 	@Override
 	public String toString() {
 		return "Item{" +
-				"name='" + name + '\'' +
+				"id='" + getId() + '\'' +
+				", name='" + name + '\'' +
 				", uploadDate=" + uploadDate +
 				", archiveId='" + archiveId + '\'' +
 				", checksum='" + checksum + '\'' +
+				", treeHash='" + treeHash + '\'' +
 				", size=" + size +
 				", vault='" + vault + '\'' +
 				", region='" + region + '\'' +
+				", packed=" + packed +
+				", offset=" + offset +
+				", chunks=" + (recipe == null ? 0 : recipe.size()) +
+				", codec='" + codec + '\'' +
+				", storedSize=" + getStoredSize() +
 				'}';
 	}
+
+	/**
+	 * Where a chunk of content is stored
+	 */
+	static class ChunkRef {
+
+		private String hash;
+		private String archiveId;
+		private long offset;
+		private long length;
+		private long archiveSize;
+
+		public ChunkRef() {
+		}
+
+		public ChunkRef(String hash, String archiveId, long offset, long length, long archiveSize) {
+			this.hash = hash;
+			this.archiveId = archiveId;
+			this.offset = offset;
+			this.length = length;
+			this.archiveSize = archiveSize;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+
+		public String getArchiveId() {
+			return archiveId;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public long getArchiveSize() {
+			return archiveSize;
+		}
+	}
+
+	/**
+	 * Key of an encrypted archive, encrypted with the master key
+	 */
+	static class Encryption {
+
+		//to know which master key was used
+		private String keyId;
+		private String key;
+		private String noncePrefix;
+		//format of the encrypted blocks, 0 for archives encrypted before positions were authenticated
+		private int version;
+
+		public Encryption() {
+		}
+
+		public Encryption(String keyId, String key, String noncePrefix, int version) {
+			this.keyId = keyId;
+			this.key = key;
+			this.noncePrefix = noncePrefix;
+			this.version = version;
+		}
+
+		public String getKeyId() {
+			return keyId;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public String getNoncePrefix() {
+			return noncePrefix;
+		}
+
+		public int getVersion() {
+			return version;
+		}
+	}
 }
@@ -13,6 +13,12 @@ class Job {
 	private String vault;
 	private Date lastStatus;
 	private boolean urgent;
+	//only a slice of the retrieved range belongs to the item when it is packed
+	private boolean slice;
+	private long sliceStart;
+	private long sliceLength;
+	//offset of the archive where the retrieved range starts
+	private long rangeStart;
 
 	public Job() {
 	}
@@ -27,6 +33,13 @@ class Job {
 		this.urgent = urgent;
 	}
 
+	public Job(String jobId, String archiveId, String name, String region, String vault, boolean urgent, long sliceStart, long sliceLength) {
+		this(jobId, archiveId, name, region, vault, urgent);
+		this.slice = true;
+		this.sliceStart = sliceStart;
+		this.sliceLength = sliceLength;
+	}
+
 	public Date getLastStatus() {
 		return lastStatus;
 	}
@@ -59,6 +72,30 @@ class Job {
 		return vault;
 	}
 
+	public Job(String jobId, String archiveId, String name, String region, String vault, boolean urgent, long rangeStart) {
+		this(jobId, archiveId, name, region, vault, urgent);
+		this.rangeStart = rangeStart;
+	}
+
+	public long getRangeStart() {
+		return rangeStart;
+	}
+
+	public boolean isSlice() {
+		return slice;
+	}
+
+	/**
+	 * Start of the item inside the retrieved range
+	 */
+	public long getSliceStart() {
+		return sliceStart;
+	}
+
+	public long getSliceLength() {
+		return sliceLength;
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (this == o) return true;
@@ -0,0 +1,77 @@
+package cat.altimiras.glacier.backupper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Files one after the other as a single stream. Offset and length of every file are the ones actually read,
+ * so they are right even if a file changes while it is packed
+ */
+class PackInputStream extends InputStream {
+
+	private final List<Path> files;
+	private final long[] offsets;
+	private final long[] lengths;
+	private InputStream current;
+	private int index = -1;
+	private long position;
+
+	PackInputStream(List<Path> files) {
+		this.files = files;
+		this.offsets = new long[files.size()];
+		this.lengths = new long[files.size()];
+	}
+
+	long getOffset(int file) {
+		return offsets[file];
+	}
+
+	long getLength(int file) {
+		return lengths[file];
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (current != null || nextFile()) {
+			int read = current.read(b, off, len);
+			if (read >= 0) {
+				position += read;
+				lengths[index] += read;
+				return read;
+			}
+			current.close();
+			current = null;
+		}
+		return -1;
+	}
+
+	private boolean nextFile() throws IOException {
+		if (index + 1 >= files.size()) {
+			return false;
+		}
+		index++;
+		offsets[index] = position;
+		current = Files.newInputStream(files.get(index));
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (current != null) {
+			current.close();
+			current = null;
+		}
+	}
+}
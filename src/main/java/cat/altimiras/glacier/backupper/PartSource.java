@@ -0,0 +1,32 @@
+package cat.altimiras.glacier.backupper;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Parts of an archive to upload, read in order
+ */
+interface PartSource extends Iterator<FileChunker.Chunk>, Closeable {
+
+	long getPartSize();
+
+	/**
+	 * Start of the next part
+	 */
+	long getPosition();
+
+	/**
+	 * Size of the archive, -1 while it is not known
+	 */
+	long getSize();
+
+	/**
+	 * Number of parts, -1 while it is not known
+	 */
+	long getExpectedChunks();
+
+	/**
+	 * Moves to the next part without uploading it, to resume uploads. Sources that can not seek read it and discard it
+	 */
+	void skip();
+}
@@ -0,0 +1,125 @@
+package cat.altimiras.glacier.backupper;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Multipart upload started and not completed yet, with the parts already uploaded
+ */
+class PendingUpload {
+
+	private String uploadId;
+	private String name;
+	//version of the file (path, size, modification time and inode) it is resumed for
+	private String checksum;
+	private String vault;
+	private String region;
+	private long partSize;
+	private long size;
+	private int parallel;
+	private Date creation;
+	private List<Part> parts = new ArrayList<>();
+
+	public PendingUpload() {
+	}
+
+	public PendingUpload(String name, String checksum, String vault, String region, long partSize, long size) {
+		this.name = name;
+		this.checksum = checksum;
+		this.vault = vault;
+		this.region = region;
+		this.partSize = partSize;
+		this.size = size;
+		this.creation = new Date();
+	}
+
+	public String getUploadId() {
+		return uploadId;
+	}
+
+	public void setUploadId(String uploadId) {
+		this.uploadId = uploadId;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getChecksum() {
+		return checksum;
+	}
+
+	public String getVault() {
+		return vault;
+	}
+
+	public String getRegion() {
+		return region;
+	}
+
+	public long getPartSize() {
+		return partSize;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Parts in flight when the last part was uploaded, tuned ones are resumed with it
+	 */
+	public int getParallel() {
+		return parallel;
+	}
+
+	public void setParallel(int parallel) {
+		this.parallel = parallel;
+	}
+
+	public Date getCreation() {
+		return creation;
+	}
+
+	public List<Part> getParts() {
+		return parts;
+	}
+
+	public void setParts(List<Part> parts) {
+		this.parts = parts;
+	}
+
+	/**
+	 * Same state with its own list of parts, the inventory keeps one that is changed only by its mutations
+	 */
+	PendingUpload copy() {
+		PendingUpload copy = new PendingUpload(name, checksum, vault, region, partSize, size);
+		copy.uploadId = uploadId;
+		copy.parallel = parallel;
+		copy.creation = creation;
+		copy.parts = new ArrayList<>(parts);
+		return copy;
+	}
+
+	static class Part {
+
+		private long start;
+		private String checksum;
+
+		public Part() {
+		}
+
+		public Part(long start, String checksum) {
+			this.start = start;
+			this.checksum = checksum;
+		}
+
+		public long getStart() {
+			return start;
+		}
+
+		public String getChecksum() {
+			return checksum;
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package cat.altimiras.glacier.backupper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the content of a downloaded range
+ */
+interface RangeWriter {
+
+	/**
+	 * Called before the first byte, and again if the range is requested again, data received before must be discarded
+	 */
+	void start() throws IOException;
+
+	/**
+	 * Next bytes of the range, buffer can be reused once the method returns
+	 */
+	void write(ByteBuffer data) throws IOException;
+
+	/**
+	 * Called once the whole range is received, with the tree hash computed by Glacier when the range is tree hash aligned
+	 * (null otherwise). Throwing discards the range, it is requested again
+	 */
+	default void end(String checksum) throws IOException {
+	}
+}
@@ -0,0 +1,59 @@
+package cat.altimiras.glacier.backupper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Some ranges of a file one after the other as a single stream
+ */
+class RangesInputStream extends InputStream {
+
+	private final FileChannel channel;
+	private final List<ContentChunker.Cut> ranges;
+	private int index;
+	private long read;
+
+	RangesInputStream(Path file, List<ContentChunker.Cut> ranges) throws IOException {
+		this.channel = FileChannel.open(file, StandardOpenOption.READ);
+		this.ranges = ranges;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (index < ranges.size()) {
+			ContentChunker.Cut range = ranges.get(index);
+			long pending = range.getLength() - read;
+			if (pending <= 0) {
+				index++;
+				read = 0;
+				continue;
+			}
+			int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, pending)), range.getStart() + read);
+			if (n < 0) {
+				throw new IOException("File has changed while it was read");
+			}
+			read += n;
+			return n;
+		}
+		return -1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
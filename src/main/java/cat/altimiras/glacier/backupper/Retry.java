@@ -0,0 +1,127 @@
+package cat.altimiras.glacier.backupper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.ApiCallAttemptTimeoutException;
+import software.amazon.awssdk.core.exception.ApiCallTimeoutException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Retries a transfer on its own when it fails for a transient reason, waiting a random time up to an exponential
+ * backoff between attempts (full jitter), so throttled requests do not come back all at the same time
+ */
+class Retry {
+
+	final static Logger logger = LoggerFactory.getLogger(Retry.class);
+
+	static final int MAX_ATTEMPTS = 8;
+
+	private static final long BASE_DELAY_MILLIS = 500;
+
+	private static final long MAX_DELAY_MILLIS = 60_000;
+
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "retry-scheduler");
+		t.setDaemon(true);
+		return t;
+	});
+
+	//attempts after the first one run here, they can wait for bandwidth before sending anything
+	private static final ExecutorService attempts = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "retry-attempt");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * Called when an attempt fails because the service is overloaded (throttling, 5xx)
+	 */
+	interface CongestionListener {
+		void congested();
+	}
+
+	static <T> CompletableFuture<T> withRetries(String what, Supplier<CompletableFuture<T>> attempt, CongestionListener listener) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		attempt(what, attempt, listener, 1, result);
+		return result;
+	}
+
+	private static <T> void attempt(String what, Supplier<CompletableFuture<T>> attempt, CongestionListener listener, int n, CompletableFuture<T> result) {
+		CompletableFuture<T> future;
+		try {
+			future = attempt.get();
+		} catch (Exception e) {
+			future = new CompletableFuture<>();
+			future.completeExceptionally(e);
+		}
+
+		future.whenComplete((r, e) -> {
+			if (e == null) {
+				result.complete(r);
+				return;
+			}
+			Throwable cause = cause(e);
+			if (n >= MAX_ATTEMPTS || !isRetryable(cause)) {
+				result.completeExceptionally(cause);
+				return;
+			}
+			if (isCongestion(cause)) {
+				listener.congested();
+			}
+			long delay = ThreadLocalRandom.current().nextLong(Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << (n - 1)) + 1);
+			logger.info("{} failed ({}), attempt {}/{} in {} ms", what, cause.getMessage(), n + 1, MAX_ATTEMPTS, delay);
+			scheduler.schedule(() -> attempts.execute(() -> attempt(what, attempt, listener, n + 1, result)), delay, TimeUnit.MILLISECONDS);
+		});
+	}
+
+	static boolean isCongestion(Throwable e) {
+		if (e instanceof SdkServiceException) {
+			SdkServiceException s = (SdkServiceException) e;
+			return s.isThrottlingException() || s.statusCode() == 429 || s.statusCode() >= 500;
+		}
+		return false;
+	}
+
+	static boolean isRetryable(Throwable e) {
+		if (isCongestion(e)) {
+			return true;
+		}
+		if (e instanceof SdkServiceException) {
+			SdkServiceException s = (SdkServiceException) e;
+			return s.statusCode() == 408 || s.isClockSkewException();
+		}
+		if (e instanceof ApiCallTimeoutException || e instanceof ApiCallAttemptTimeoutException) {
+			return true;
+		}
+		//connection reset, read timeouts... other client errors (credentials, marshalling) fail again the same way
+		return isIO(e);
+	}
+
+	private static boolean isIO(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause() == t ? null : t.getCause()) {
+			if (t instanceof IOException || t instanceof UncheckedIOException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Throwable cause(Throwable e) {
+		while ((e instanceof ExecutionException || e instanceof CompletionException) && e.getCause() != null) {
+			e = e.getCause();
+		}
+		return e;
+	}
+}
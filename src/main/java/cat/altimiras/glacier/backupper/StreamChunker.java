@@ -0,0 +1,131 @@
+package cat.altimiras.glacier.backupper;
+
+import software.amazon.awssdk.utils.BinaryUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.NoSuchElementException;
+
+/**
+ * Cuts a stream (stdin, a pipe) into parts as data arrives, the size is only known once the stream is consumed.
+ * Part buffers are direct and reused once the part is released, only parts in flight are kept in memory.
+ */
+public class StreamChunker implements PartSource {
+
+	private final ReadableByteChannel channel;
+	private final TreeHasher hasher = new TreeHasher();
+	//tree hash of the whole stream, from the tree hashes of its parts
+	private final TreeHasher content = new TreeHasher();
+	private String fingerprint;
+	private final long partSize;
+	private long currentPos;
+	private FileChunker.Chunk next;
+	private boolean eof;
+
+	public StreamChunker(InputStream input, long partSize) throws Exception {
+		this.channel = Channels.newChannel(input);
+		this.partSize = partSize;
+	}
+
+	public static StreamChunker partitionate(InputStream input, long partSize) throws Exception {
+		return new StreamChunker(input, partSize);
+	}
+
+	@Override
+	public long getPartSize() {
+		return partSize;
+	}
+
+	@Override
+	public long getPosition() {
+		return next != null ? next.getStart() : currentPos;
+	}
+
+	@Override
+	public long getSize() {
+		return eof && next == null ? currentPos : -1;
+	}
+
+	@Override
+	public long getExpectedChunks() {
+		return -1;
+	}
+
+	/**
+	 * Same fingerprint than files, tree hash of the whole content, available once the stream is consumed
+	 */
+	public String fingerprint() {
+		if (getSize() < 0) {
+			throw new IllegalStateException("Stream has not been consumed yet");
+		}
+		if (fingerprint == null) {
+			fingerprint = BinaryUtils.toHex(content.digest());
+		}
+		return fingerprint;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null && !eof) {
+			try {
+				next = read();
+			} catch (Exception e) {
+				throw new IllegalStateException("Unable to read chunk at " + currentPos, e);
+			}
+		}
+		return next != null;
+	}
+
+	@Override
+	public FileChunker.Chunk next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		FileChunker.Chunk chunk = next;
+		next = null;
+		return chunk;
+	}
+
+	/**
+	 * Streams can not seek, the part is read and discarded. It is still part of the fingerprint
+	 */
+	@Override
+	public void skip() {
+		next().release();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private FileChunker.Chunk read() throws Exception {
+		ByteBuffer[] content = FileChunker.buffers(partSize);
+
+		long read = 0;
+		for (ByteBuffer window : content) {
+			while (window.hasRemaining() && !eof) {
+				if (channel.read(window) < 0) {
+					eof = true;
+				}
+			}
+			window.flip();
+			read += window.remaining();
+		}
+
+		if (read == 0) {
+			FileChunker.release(content);
+			return null;
+		}
+
+		byte[] checksum = FileChunker.checksum(hasher, content);
+		//parts are of a power of 2 MB
+		this.content.addNode(checksum, Long.numberOfTrailingZeros(partSize / TreeHash.ONE_MB));
+		FileChunker.Chunk chunk = new FileChunker.Chunk(currentPos, read, content, checksum, () -> FileChunker.release(content));
+		currentPos += read;
+		return chunk;
+	}
+}
@@ -0,0 +1,85 @@
+package cat.altimiras.glacier.backupper;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.glacier.model.DescribeJobRequest;
+import software.amazon.awssdk.services.glacier.model.DescribeJobResponse;
+import software.amazon.awssdk.services.glacier.model.GetJobOutputRequest;
+import software.amazon.awssdk.services.glacier.model.GetJobOutputResponse;
+import software.amazon.awssdk.services.glacier.model.UploadMultipartPartRequest;
+import software.amazon.awssdk.services.glacier.model.UploadMultipartPartResponse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Blocking client, every request in flight takes one thread
+ */
+class SyncTransferEngine implements TransferEngine {
+
+	//buffer to receive ranges, filled before it is written
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	private final GlacierClients clients;
+	private final ExecutorService workers;
+	private final BufferPool buffers = new BufferPool(BUFFER_SIZE, 64);
+
+	SyncTransferEngine(GlacierClients clients) {
+		this.clients = clients;
+		this.workers = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "transfer-worker");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	@Override
+	public CompletableFuture<UploadMultipartPartResponse> uploadPart(String region, UploadMultipartPartRequest request, FileChunker.Chunk chunk) {
+		return CompletableFuture.supplyAsync(() ->
+				clients.getTransfer(region).uploadMultipartPart(request, RequestBody.fromInputStream(chunk.getInputStream(), chunk.getLength())), workers);
+	}
+
+	@Override
+	public CompletableFuture<GetJobOutputResponse> downloadRange(String region, GetJobOutputRequest request, RangeWriter writer) {
+		return CompletableFuture.supplyAsync(() -> {
+			ByteBuffer buffer = buffers.acquire();
+			try (ResponseInputStream<GetJobOutputResponse> input = clients.getTransfer(region).getJobOutput(request)) {
+				ReadableByteChannel channel = Channels.newChannel(input);
+				writer.start();
+				boolean end = false;
+				while (!end) {
+					while (buffer.hasRemaining() && !end) {
+						end = channel.read(buffer) < 0;
+					}
+					buffer.flip();
+					if (buffer.hasRemaining()) {
+						writer.write(buffer);
+					}
+					buffer.clear();
+				}
+				return input.response();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} finally {
+				buffers.release(buffer);
+			}
+		}, workers);
+	}
+
+	@Override
+	public CompletableFuture<DescribeJobResponse> describeJob(String region, DescribeJobRequest request) {
+		//not a transfer, the SDK retries it
+		return CompletableFuture.supplyAsync(() -> clients.get(region).describeJob(request), workers);
+	}
+
+	@Override
+	public void close() {
+		workers.shutdownNow();
+	}
+}
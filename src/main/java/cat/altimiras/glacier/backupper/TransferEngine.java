@@ -0,0 +1,29 @@
+package cat.altimiras.glacier.backupper;
+
+import software.amazon.awssdk.services.glacier.model.DescribeJobRequest;
+import software.amazon.awssdk.services.glacier.model.DescribeJobResponse;
+import software.amazon.awssdk.services.glacier.model.GetJobOutputRequest;
+import software.amazon.awssdk.services.glacier.model.GetJobOutputResponse;
+import software.amazon.awssdk.services.glacier.model.UploadMultipartPartRequest;
+import software.amazon.awssdk.services.glacier.model.UploadMultipartPartResponse;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Executes the data transfer requests, the ones repeated for every part or range, without blocking the caller.
+ * How many of them are in flight is decided by the caller.
+ */
+interface TransferEngine extends AutoCloseable {
+
+	CompletableFuture<UploadMultipartPartResponse> uploadPart(String region, UploadMultipartPartRequest request, FileChunker.Chunk chunk);
+
+	/**
+	 * Range content is given to the writer as it arrives
+	 */
+	CompletableFuture<GetJobOutputResponse> downloadRange(String region, GetJobOutputRequest request, RangeWriter writer);
+
+	CompletableFuture<DescribeJobResponse> describeJob(String region, DescribeJobRequest request);
+
+	@Override
+	void close();
+}
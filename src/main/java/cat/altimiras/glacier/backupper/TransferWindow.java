@@ -0,0 +1,171 @@
+package cat.altimiras.glacier.backupper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounds the transfers in flight. With autotune the size of the window is changed while transferring:
+ * it keeps moving in the same direction while the measured throughput improves, it turns back when
+ * throughput drops, and when throughput is flat it shrinks if requests take longer (they are just queueing).
+ * When the service throttles or fails the window is halved, and it grows one by one again while transfers
+ * succeed (up to the initial size, or the max with autotune).
+ */
+class TransferWindow {
+
+	final static Logger logger = LoggerFactory.getLogger(TransferWindow.class);
+
+	//minimum transfers between two decisions, the window size is used when it is bigger
+	private static final int MIN_SAMPLE = 4;
+
+	//changes under 5% are noise
+	private static final double TOLERANCE = 0.05;
+
+	private final ResizableSemaphore permits;
+	private final int max;
+	private final int target;
+	private final boolean autotune;
+
+	private volatile int size;
+
+	private int direction = 1;
+	private long sampleStart = System.nanoTime();
+	private long sampleBytes;
+	private long sampleLatency;
+	private int sampleTransfers;
+	private double lastThroughput;
+	private double lastLatency;
+	private int successes;
+	//moving average of the time of a transfer
+	private double recentLatency;
+	//transfers started before a decrease fail for the same reason, they do not decrease it again
+	private long lastDecrease;
+
+	TransferWindow(int size, int max, boolean autotune) {
+		this.size = Math.min(size, max);
+		this.max = max;
+		this.target = this.size;
+		this.autotune = autotune;
+		this.permits = new ResizableSemaphore(this.size);
+	}
+
+	void acquire() throws InterruptedException {
+		permits.acquire();
+	}
+
+	/**
+	 * Releases the slot of a transfer finished successfully
+	 */
+	void completed(long bytes, long nanos) {
+		if (autotune) {
+			tune(bytes, nanos);
+		} else {
+			increase(nanos);
+		}
+		permits.release();
+	}
+
+	/**
+	 * The service is overloaded, multiplicative decrease of the window
+	 */
+	synchronized void congested() {
+		long now = System.nanoTime();
+		if (now - lastDecrease < recentLatency) {
+			return;
+		}
+		lastDecrease = now;
+		if (size > 1) {
+			resize(size / 2);
+			logger.info("Service is overloaded, transfers in parallel: {}", size);
+		}
+		//hill climbing starts again from the new size
+		direction = 1;
+		successes = 0;
+		lastThroughput = 0;
+		sampleStart = now;
+		sampleBytes = 0;
+		sampleLatency = 0;
+		sampleTransfers = 0;
+	}
+
+	/**
+	 * Releases the slot of a failed transfer
+	 */
+	void failed() {
+		permits.release();
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Additive increase back to the initial size, one more transfer once a whole window has succeeded
+	 */
+	private synchronized void increase(long nanos) {
+		recentLatency = recentLatency == 0 ? nanos : (recentLatency * 7 + nanos) / 8;
+		if (size < target && ++successes >= size) {
+			successes = 0;
+			resize(size + 1);
+			logger.info("Transfers in parallel: {}", size);
+		}
+	}
+
+	private synchronized void tune(long bytes, long nanos) {
+		recentLatency = recentLatency == 0 ? nanos : (recentLatency * 7 + nanos) / 8;
+		sampleBytes += bytes;
+		sampleLatency += nanos;
+		sampleTransfers++;
+		if (sampleTransfers < Math.max(MIN_SAMPLE, size)) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		double throughput = sampleBytes * 1e9 / Math.max(1, now - sampleStart);
+		double latency = sampleLatency / (double) sampleTransfers;
+
+		int step = direction;
+		if (lastThroughput > 0) {
+			if (throughput < lastThroughput * (1 - TOLERANCE)) {
+				direction = -direction;
+				step = direction;
+			} else if (throughput <= lastThroughput * (1 + TOLERANCE)) {
+				step = latency > lastLatency * (1 + TOLERANCE) ? -1 : 0;
+			}
+		}
+		if (step != 0) {
+			resize(size + step);
+			logger.info("Transfers in parallel: {} ({} MB/s, {} ms per transfer)", size, Math.round(throughput / (1024 * 1024)), Math.round(latency / 1e6));
+		}
+
+		lastThroughput = throughput;
+		lastLatency = latency;
+		sampleStart = now;
+		sampleBytes = 0;
+		sampleLatency = 0;
+		sampleTransfers = 0;
+	}
+
+	private synchronized void resize(int newSize) {
+		newSize = Math.max(1, Math.min(max, newSize));
+		if (newSize > size) {
+			permits.release(newSize - size);
+		} else if (newSize < size) {
+			permits.reduce(size - newSize);
+		}
+		size = newSize;
+	}
+
+	private static class ResizableSemaphore extends Semaphore {
+
+		ResizableSemaphore(int permits) {
+			super(permits);
+		}
+
+		//slots in use are not interrupted, new transfers wait till enough of them finish
+		void reduce(int reduction) {
+			reducePermits(reduction);
+		}
+	}
+}
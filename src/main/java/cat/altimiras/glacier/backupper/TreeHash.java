@@ -4,10 +4,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.IntStream;
 
 public class TreeHash {
 
@@ -17,8 +23,28 @@ public class TreeHash {
 
 	static final int ONE_MB = 1024 * 1024;
 
+	//window of the file read at a time, the next one is read while the leaves of the current one are hashed
+	static final int WINDOW = 32 * ONE_MB;
+
+	//leaves hashed by a fork/join task without splitting it
+	private static final int LEAVES_BY_TASK = 2;
+
+	//windows kept for the next files, two by file hashed at the same time
+	private static final BufferPool windows = new BufferPool(WINDOW, 4);
+
+	//levels of the tree smaller than this are reduced on the calling thread, as they come
+	private static final int PARALLEL_LEVEL = 1024;
+
+	private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
 	/**
-	 * Computes the SHA-256 tree hash for the given file
+	 * Computes the SHA-256 tree hash for the given file on all cores
 	 *
 	 * @param inputFile a File to compute the SHA-256 tree hash for
 	 * @return a byte[] containing the SHA-256 tree hash
@@ -28,13 +54,18 @@ public class TreeHash {
 	public static byte[] computeSHA256TreeHash(File inputFile) throws IOException,
 			NoSuchAlgorithmException {
 
+		long started = System.nanoTime();
 		byte[][] chunkSHA256Hashes = getChunkSHA256Hashes(inputFile);
-		return computeSHA256TreeHash(chunkSHA256Hashes);
+		byte[] treeHash = computeSHA256TreeHash(chunkSHA256Hashes);
+		double seconds = Math.max(System.nanoTime() - started, 1) / 1e9;
+		logger.info("Tree hash of {} computed at {} GB/s", inputFile.getName(), String.format("%.2f", inputFile.length() / seconds / (1024 * 1024 * 1024)));
+		return treeHash;
 	}
 
 	/**
 	 * Computes a SHA256 checksum for each 1 MB chunk of the input file. This
 	 * includes the checksum for the last chunk even if it is smaller than 1 MB.
+	 * The file is read by windows into reused buffers, chunks of a window are hashed on a fork/join pool
 	 *
 	 * @param file A file to compute checksums on
 	 * @return a byte[][] containing the checksums of each 1 MB chunk
@@ -44,42 +75,84 @@ public class TreeHash {
 	public static byte[][] getChunkSHA256Hashes(File file) throws IOException,
 			NoSuchAlgorithmException {
 
-		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			long numChunks = (size + ONE_MB - 1) / ONE_MB;
 
-		long numChunks = file.length() / ONE_MB;
-		if (file.length() % ONE_MB > 0) {
-			numChunks++;
-		}
+			if (numChunks == 0) {
+				return new byte[][]{MessageDigest.getInstance("SHA-256").digest()};
+			}
 
-		if (numChunks == 0) {
-			return new byte[][]{md.digest()};
+			byte[][] chunkSHA256Hashes = new byte[(int) numChunks][];
+			ByteBuffer window = windows.acquire();
+			ByteBuffer next = windows.acquire();
+			try {
+				read(channel, window, 0, size);
+				for (long windowStart = 0; windowStart < size; windowStart += WINDOW) {
+					int leaves = (window.remaining() + ONE_MB - 1) / ONE_MB;
+					ForkJoinTask<Void> hashed = ForkJoinPool.commonPool().submit(new LeavesTask(window, (int) (windowStart / ONE_MB), 0, leaves, chunkSHA256Hashes));
+					read(channel, next, windowStart + WINDOW, size);
+					hashed.join();
+
+					ByteBuffer swap = window;
+					window = next;
+					next = swap;
+				}
+			} finally {
+				windows.release(window);
+				windows.release(next);
+			}
+			return chunkSHA256Hashes;
 		}
+	}
 
-		byte[][] chunkSHA256Hashes = new byte[(int) numChunks][];
-		FileInputStream fileStream = null;
-
-		try {
-			fileStream = new FileInputStream(file);
-			byte[] buff = new byte[ONE_MB];
-
-			int bytesRead;
-			int idx = 0;
-
-			while ((bytesRead = fileStream.read(buff, 0, ONE_MB)) > 0) {
-				md.reset();
-				md.update(buff, 0, bytesRead);
-				chunkSHA256Hashes[idx++] = md.digest();
+	//fills the buffer from the position, or till the size
+	private static void read(FileChannel channel, ByteBuffer buffer, long position, long size) throws IOException {
+		buffer.clear();
+		buffer.limit((int) Math.max(0, Math.min(buffer.capacity(), size - position)));
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("File is shorter than " + size + " bytes, it changed while reading");
 			}
+			position += read;
+		}
+		buffer.flip();
+	}
 
-			return chunkSHA256Hashes;
+	/**
+	 * Hashes the 1 MB chunks of a window from one to another (exclusive), split in halves till there are a few
+	 */
+	private static class LeavesTask extends RecursiveAction {
+
+		private final ByteBuffer window;
+		private final int firstChunk;
+		private final int from;
+		private final int to;
+		private final byte[][] hashes;
+
+		LeavesTask(ByteBuffer window, int firstChunk, int from, int to, byte[][] hashes) {
+			this.window = window;
+			this.firstChunk = firstChunk;
+			this.from = from;
+			this.to = to;
+			this.hashes = hashes;
+		}
 
-		} finally {
-			if (fileStream != null) {
-				try {
-					fileStream.close();
-				} catch (IOException ioe) {
-					logger.error("Exception while closing {}.\n {}", file.getName(), ioe.getMessage());
+		@Override
+		protected void compute() {
+			if (to - from <= LEAVES_BY_TASK) {
+				MessageDigest md = digests.get();
+				for (int i = from; i < to; i++) {
+					ByteBuffer leaf = window.duplicate();
+					leaf.limit(Math.min(window.limit(), (i + 1) * ONE_MB));
+					leaf.position(i * ONE_MB);
+					md.update(leaf);
+					hashes[firstChunk + i] = md.digest();
 				}
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new LeavesTask(window, firstChunk, from, middle, hashes), new LeavesTask(window, firstChunk, middle, to, hashes));
 			}
 		}
 	}
@@ -93,7 +166,8 @@ public class TreeHash {
 	 * previous level source array, computes the SHA-256 hash on their
 	 * concatenated value and places the result in the next level's destination
 	 * array. At the end of an iteration, the destination array becomes the
-	 * source array for the next level.
+	 * source array for the next level. Nodes of big levels are computed in parallel,
+	 * the last levels by a {@link TreeHasher}.
 	 *
 	 * @param chunkSHA256Hashes An array of SHA-256 checksums
 	 * @return A byte[] containing the SHA-256 tree hash for the input chunks
@@ -102,39 +176,37 @@ public class TreeHash {
 	public static byte[] computeSHA256TreeHash(byte[][] chunkSHA256Hashes)
 			throws NoSuchAlgorithmException {
 
-		MessageDigest md = MessageDigest.getInstance("SHA-256");
-
 		byte[][] prevLvlHashes = chunkSHA256Hashes;
+		int level = 0;
 
-		while (prevLvlHashes.length > 1) {
+		while (prevLvlHashes.length / 2 >= PARALLEL_LEVEL) {
 
-			int len = prevLvlHashes.length / 2;
-			if (prevLvlHashes.length % 2 != 0) {
-				len++;
-			}
-
-			byte[][] currLvlHashes = new byte[len][];
-
-			int j = 0;
-			for (int i = 0; i < prevLvlHashes.length; i = i + 2, j++) {
+			byte[][] prev = prevLvlHashes;
+			byte[][] currLvlHashes = new byte[(prev.length + 1) / 2][];
 
+			IntStream.range(0, currLvlHashes.length).parallel().forEach(j -> {
+				int i = 2 * j;
 				// If there are at least two elements remaining
-				if (prevLvlHashes.length - i > 1) {
-
+				if (prev.length - i > 1) {
 					// Calculate a digest of the concatenated nodes
-					md.reset();
-					md.update(prevLvlHashes[i]);
-					md.update(prevLvlHashes[i + 1]);
+					MessageDigest md = digests.get();
+					md.update(prev[i]);
+					md.update(prev[i + 1]);
 					currLvlHashes[j] = md.digest();
-
 				} else { // Take care of remaining odd chunk
-					currLvlHashes[j] = prevLvlHashes[i];
+					currLvlHashes[j] = prev[i];
 				}
-			}
+			});
 
 			prevLvlHashes = currLvlHashes;
+			level++;
 		}
 
-		return prevLvlHashes[0];
+		//last levels are not worth to be split
+		TreeHasher hasher = new TreeHasher();
+		for (byte[] node : prevLvlHashes) {
+			hasher.addNode(node, level);
+		}
+		return hasher.digest();
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,50 @@
+package cat.altimiras.glacier.backupper;
+
+import software.amazon.awssdk.utils.BinaryUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Computes the tree hash of a range while it is written, and checks it against the one Glacier computed for the range.
+ * The range must start at a MB of the archive
+ */
+class TreeHashRangeWriter implements RangeWriter {
+
+	private final RangeWriter delegate;
+	private final TreeHasher hasher = new TreeHasher();
+	private byte[] treeHash;
+
+	TreeHashRangeWriter(RangeWriter delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void start() throws IOException {
+		hasher.reset();
+		treeHash = null;
+		delegate.start();
+	}
+
+	@Override
+	public void write(ByteBuffer data) throws IOException {
+		hasher.update(data);
+		delegate.write(data);
+	}
+
+	@Override
+	public void end(String checksum) throws IOException {
+		treeHash = hasher.digest();
+		if (checksum != null && !checksum.equals(BinaryUtils.toHex(treeHash))) {
+			throw new IOException("Tree hash " + BinaryUtils.toHex(treeHash) + " does not match " + checksum + " computed by Glacier");
+		}
+		delegate.end(checksum);
+	}
+
+	/**
+	 * Tree hash of the range once it is received
+	 */
+	byte[] getTreeHash() {
+		return treeHash;
+	}
+}
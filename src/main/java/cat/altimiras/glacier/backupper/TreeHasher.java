@@ -0,0 +1,138 @@
+package cat.altimiras.glacier.backupper;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 tree hash computed as the content comes: bytes cut in 1 MB leaves, leaf checksums or tree hashes of aligned
+ * ranges. Only the nodes not paired yet are kept, one by level at most, in arrays reused for the whole tree.
+ * Reusable once the tree hash is taken.
+ * https://docs.aws.amazon.com/amazonglacier/latest/dev/checksum-calculations.html
+ */
+class TreeHasher {
+
+	private static final int HASH_SIZE = 32;
+
+	//levels of a tree of 2^64 leaves
+	private static final int MAX_LEVELS = 64;
+
+	private final MessageDigest md;
+	private final byte[][] nodes = new byte[MAX_LEVELS + 1][HASH_SIZE];
+	private final int[] levels = new int[MAX_LEVELS + 1];
+	private int pending;
+	private long inLeaf;
+	private boolean empty = true;
+
+	TreeHasher() {
+		try {
+			this.md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	TreeHasher update(byte[] data, int off, int len) {
+		return update(ByteBuffer.wrap(data, off, len));
+	}
+
+	/**
+	 * Next bytes of the content, buffer position is not changed
+	 */
+	TreeHasher update(ByteBuffer data) {
+		ByteBuffer content = data.duplicate();
+		while (content.hasRemaining()) {
+			int n = (int) Math.min(content.remaining(), TreeHash.ONE_MB - inLeaf);
+			int limit = content.limit();
+			content.limit(content.position() + n);
+			md.update(content);
+			content.limit(limit);
+			inLeaf += n;
+			empty = false;
+			if (inLeaf == TreeHash.ONE_MB) {
+				finishLeaf();
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Checksum of the next 1 MB of the content
+	 */
+	TreeHasher addLeaf(byte[] checksum) {
+		return addNode(checksum, 0);
+	}
+
+	/**
+	 * Tree hash of the next range of the content, of 2^level MB and aligned to its size (the last one can be shorter)
+	 */
+	TreeHasher addNode(byte[] treeHash, int level) {
+		if (inLeaf > 0) {
+			throw new IllegalStateException("Tree hashes can not be added in the middle of a leaf");
+		}
+		System.arraycopy(treeHash, 0, nodes[pending], 0, HASH_SIZE);
+		levels[pending] = level;
+		pending++;
+		empty = false;
+		merge();
+		return this;
+	}
+
+	/**
+	 * Tree hash of everything added, the hasher is reset
+	 */
+	byte[] digest() {
+		if (inLeaf > 0 || empty) {
+			finishLeaf();
+		}
+		//nodes not paired are carried up, so they are paired from the right
+		while (pending > 1) {
+			pair();
+		}
+		byte[] treeHash = nodes[0].clone();
+		reset();
+		return treeHash;
+	}
+
+	/**
+	 * Discards everything added
+	 */
+	void reset() {
+		md.reset();
+		pending = 0;
+		inLeaf = 0;
+		empty = true;
+	}
+
+	private void finishLeaf() {
+		digestInto(nodes[pending]);
+		levels[pending] = 0;
+		pending++;
+		inLeaf = 0;
+		merge();
+	}
+
+	private void merge() {
+		while (pending > 1 && levels[pending - 1] == levels[pending - 2]) {
+			pair();
+		}
+	}
+
+	//the last two nodes are replaced by its parent
+	private void pair() {
+		md.update(nodes[pending - 2]);
+		md.update(nodes[pending - 1]);
+		digestInto(nodes[pending - 2]);
+		levels[pending - 2]++;
+		pending--;
+	}
+
+	private void digestInto(byte[] node) {
+		try {
+			md.digest(node, 0, HASH_SIZE);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
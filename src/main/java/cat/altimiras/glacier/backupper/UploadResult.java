@@ -0,0 +1,26 @@
+package cat.altimiras.glacier.backupper;
+
+class UploadResult {
+
+	private final String archiveId;
+	private final String treeHash;
+	private final long size;
+
+	UploadResult(String archiveId, String treeHash, long size) {
+		this.archiveId = archiveId;
+		this.treeHash = treeHash;
+		this.size = size;
+	}
+
+	public String getArchiveId() {
+		return archiveId;
+	}
+
+	public String getTreeHash() {
+		return treeHash;
+	}
+
+	public long getSize() {
+		return size;
+	}
+}
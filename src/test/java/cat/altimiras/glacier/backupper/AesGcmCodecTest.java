@@ -0,0 +1,105 @@
+package cat.altimiras.glacier.backupper;
+
+import org.junit.Test;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class AesGcmCodecTest {
+
+	private final SecretKey master = key(1);
+
+	@Test
+	public void keyIsWrappedAndUnwrappedWithTheMasterKey() throws Exception {
+		AesGcmCodec codec = AesGcmCodec.create();
+		Item.Encryption encryption = codec.getEncryption(master);
+		assertEquals(AesGcmCodec.VERSION, encryption.getVersion());
+
+		BlockCodec.Position position = new BlockCodec.Position(3, 0, 5, true);
+		byte[] block = codec.encode(position, "hello".getBytes(), 5);
+		AesGcmCodec opened = AesGcmCodec.open(encryption, master);
+		assertArrayEquals("hello".getBytes(), opened.decode(position, block, 0, block.length));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void otherMasterKeyIsRejected() throws Exception {
+		AesGcmCodec.open(AesGcmCodec.create().getEncryption(master), key(2));
+	}
+
+	@Test
+	public void archiveIsDecodedWithTheCodecOfItsItem() throws Exception {
+		byte[] content = BlockFrameTest.content(2 * BlockFrame.BLOCK_SIZE + 7);
+		BlockCodec codec = new ChainCodec(new DeflateCodec(), AesGcmCodec.create());
+		byte[] archive = BlockFrameTest.encode(content, codec);
+		Item item = new Item("name", "checksum", "archive", content.length, "treehash", "vault", "region", codec.getName(), archive.length, codec.getEncryption(master));
+
+		long indexOffset = BlockFrameTest.indexOffset(archive);
+		BlockCodec decoder = BlockCodec.of(item, master);
+		assertArrayEquals(content, BlockFrameTest.decode(archive, BlockFrameTest.entries(archive, indexOffset), decoder, content.length));
+	}
+
+	@Test(expected = AEADBadTagException.class)
+	public void tamperedBlockIsRejected() throws Exception {
+		AesGcmCodec codec = AesGcmCodec.create();
+		BlockCodec.Position position = new BlockCodec.Position(0, 0, 5, true);
+		byte[] block = codec.encode(position, "hello".getBytes(), 5);
+		block[1] ^= 1;
+		codec.decode(position, block, 0, block.length);
+	}
+
+	@Test(expected = AEADBadTagException.class)
+	public void blockIsBoundToItsIndex() throws Exception {
+		AesGcmCodec codec = AesGcmCodec.create();
+		byte[] block = codec.encode(new BlockCodec.Position(0, 0, 5, true), "hello".getBytes(), 5);
+		codec.decode(new BlockCodec.Position(1, 0, 5, true), block, 0, block.length);
+	}
+
+	@Test(expected = AEADBadTagException.class)
+	public void blockIsBoundToItsLogicalOffset() throws Exception {
+		AesGcmCodec codec = AesGcmCodec.create();
+		byte[] block = codec.encode(new BlockCodec.Position(1, 4096, 5, true), "hello".getBytes(), 5);
+		codec.decode(new BlockCodec.Position(1, 0, 5, true), block, 0, block.length);
+	}
+
+	@Test(expected = AEADBadTagException.class)
+	public void archiveCutAfterABlockIsRejected() throws Exception {
+		AesGcmCodec codec = AesGcmCodec.create();
+		byte[] block = codec.encode(new BlockCodec.Position(0, 0, 5, false), "hello".getBytes(), 5);
+		//read as the last block once the next ones are dropped
+		codec.decode(new BlockCodec.Position(0, 0, 5, true), block, 0, block.length);
+	}
+
+	@Test
+	public void firstVersionDoesNotAuthenticatePositions() throws Exception {
+		Item.Encryption current = AesGcmCodec.create().getEncryption(master);
+		Item.Encryption first = new Item.Encryption(current.getKeyId(), current.getKey(), current.getNoncePrefix(), 0);
+		AesGcmCodec codec = AesGcmCodec.open(first, master);
+
+		byte[] block = codec.encode(new BlockCodec.Position(2, 0, 5, false), "hello".getBytes(), 5);
+		assertArrayEquals("hello".getBytes(), codec.decode(new BlockCodec.Position(2, 100, 5, true), block, 0, block.length));
+	}
+
+	@Test
+	public void blocksOfOneArchiveHaveDifferentNonces() throws Exception {
+		AesGcmCodec codec = AesGcmCodec.create();
+		List<byte[]> blocks = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			blocks.add(codec.encode(new BlockCodec.Position(i, 0, 5, true), "hello".getBytes(), 5));
+		}
+		assertFalse(Arrays.equals(blocks.get(0), blocks.get(1)));
+	}
+
+	private static SecretKey key(int seed) {
+		byte[] key = new byte[32];
+		key[0] = (byte) seed;
+		return new SecretKeySpec(key, "AES");
+	}
+}
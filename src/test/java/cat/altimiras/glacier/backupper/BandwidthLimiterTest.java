@@ -0,0 +1,52 @@
+package cat.altimiras.glacier.backupper;
+
+import org.junit.Test;
+
+import java.time.LocalTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BandwidthLimiterTest {
+
+	private static final long MB = 1024 * 1024;
+
+	@Test
+	public void rateWithoutWindowIsForTheWholeDay() {
+		BandwidthLimiter limiter = BandwidthLimiter.parse("5");
+		assertEquals(5 * MB, limiter.rate(LocalTime.of(0, 0)));
+		assertEquals(5 * MB, limiter.rate(LocalTime.of(23, 59)));
+	}
+
+	@Test
+	public void noLimitOutOfTheWindows() {
+		BandwidthLimiter limiter = BandwidthLimiter.parse("08:00-20:00=20, 20:00-22:00=0.5");
+		assertEquals(0, limiter.rate(LocalTime.of(7, 59)));
+		assertEquals(20 * MB, limiter.rate(LocalTime.of(8, 0)));
+		assertEquals(MB / 2, limiter.rate(LocalTime.of(20, 0)));
+		assertEquals(0, limiter.rate(LocalTime.of(22, 0)));
+	}
+
+	@Test
+	public void windowGoesThroughMidnight() {
+		BandwidthLimiter limiter = BandwidthLimiter.parse("22:00-06:00=10");
+		assertEquals(10 * MB, limiter.rate(LocalTime.of(23, 0)));
+		assertEquals(10 * MB, limiter.rate(LocalTime.of(5, 59)));
+		assertEquals(0, limiter.rate(LocalTime.of(12, 0)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void windowWithoutEndIsRejected() {
+		BandwidthLimiter.parse("08:00=20");
+	}
+
+	@Test
+	public void transfersWaitForTheRate() throws Exception {
+		BandwidthLimiter limiter = BandwidthLimiter.parse("4");
+		long started = System.nanoTime();
+		//the bucket starts empty, 6MB take 1.5s
+		limiter.acquire(6 * MB);
+		long millis = (System.nanoTime() - started) / 1_000_000;
+		assertTrue("waited " + millis + " ms", millis >= 1400 && millis < 3000);
+	}
+}
@@ -0,0 +1,124 @@
+package cat.altimiras.glacier.backupper;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BlockFrameTest {
+
+	@Test
+	public void contentIsDecodedFromItsBlocks() throws Exception {
+		byte[] content = content(2 * BlockFrame.BLOCK_SIZE + 12345);
+		byte[] archive = encode(content, new DeflateCodec());
+
+		long indexOffset = indexOffset(archive);
+		List<BlockFrame.Entry> entries = entries(archive, indexOffset);
+		assertEquals(3, entries.size());
+		BlockFrame.checkContiguous(entries, indexOffset);
+		assertTrue(archive.length <= BlockEncoder.maxSize(content.length));
+
+		assertArrayEquals(content, decode(archive, entries, new DeflateCodec(), content.length));
+	}
+
+	@Test
+	public void emptyContentIsOneEmptyBlock() throws Exception {
+		byte[] archive = encode(new byte[0], new DeflateCodec());
+
+		long indexOffset = indexOffset(archive);
+		List<BlockFrame.Entry> entries = entries(archive, indexOffset);
+		assertEquals(1, entries.size());
+		assertEquals(0, entries.get(0).getLogicalLength());
+		assertEquals(0, decode(archive, entries, new DeflateCodec(), 0).length);
+	}
+
+	@Test
+	public void indexIsWrittenAndReadBack() {
+		List<BlockFrame.Entry> entries = new ArrayList<>();
+		entries.add(new BlockFrame.Entry(0, 100, 0, 4096));
+		entries.add(new BlockFrame.Entry(108, 50, 4096, 10));
+		ByteBuffer index = BlockFrame.index(entries);
+
+		ByteBuffer trailer = index.duplicate();
+		trailer.position(index.limit() - BlockFrame.TRAILER);
+		assertEquals(166, BlockFrame.indexOffset(trailer));
+
+		ByteBuffer read = index.duplicate();
+		read.limit(index.limit() - BlockFrame.TRAILER);
+		List<BlockFrame.Entry> back = BlockFrame.entries(read);
+		assertEquals(2, back.size());
+		assertEquals(108, back.get(1).getOffset());
+		assertEquals(50, back.get(1).getLength());
+		assertEquals(4096, back.get(1).getLogicalOffset());
+		assertEquals(10, back.get(1).getLogicalLength());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void archiveWithoutTrailerIsRejected() {
+		BlockFrame.indexOffset(ByteBuffer.allocate(BlockFrame.TRAILER));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void blockOutOfPlaceIsRejected() {
+		List<BlockFrame.Entry> entries = new ArrayList<>();
+		entries.add(new BlockFrame.Entry(0, 100, 0, 4096));
+		entries.add(new BlockFrame.Entry(108, 50, 5000, 10));
+		BlockFrame.checkContiguous(entries, 166);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void blocksDroppedBeforeTheIndexAreRejected() {
+		List<BlockFrame.Entry> entries = new ArrayList<>();
+		entries.add(new BlockFrame.Entry(0, 100, 0, 4096));
+		BlockFrame.checkContiguous(entries, 166);
+	}
+
+	static byte[] encode(byte[] content, BlockCodec codec) throws Exception {
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		try (BlockEncoder encoder = new BlockEncoder(new ByteArrayInputStream(content), codec)) {
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = encoder.read(buffer)) > 0) {
+				archive.write(buffer, 0, n);
+			}
+		}
+		return archive.toByteArray();
+	}
+
+	static long indexOffset(byte[] archive) {
+		return BlockFrame.indexOffset(ByteBuffer.wrap(archive, archive.length - BlockFrame.TRAILER, BlockFrame.TRAILER));
+	}
+
+	static List<BlockFrame.Entry> entries(byte[] archive, long indexOffset) {
+		return BlockFrame.entries(ByteBuffer.wrap(archive, (int) indexOffset, (int) (archive.length - BlockFrame.TRAILER - indexOffset)));
+	}
+
+	static byte[] decode(byte[] archive, List<BlockFrame.Entry> entries, BlockCodec codec, int size) throws Exception {
+		byte[] content = new byte[size];
+		for (int i = 0; i < entries.size(); i++) {
+			BlockFrame.Entry entry = entries.get(i);
+			BlockCodec.Position position = new BlockCodec.Position(i, entry.getLogicalOffset(), entry.getLogicalLength(), i == entries.size() - 1);
+			byte[] block = codec.decode(position, archive, (int) entry.getOffset() + BlockFrame.HEADER, entry.getLength());
+			System.arraycopy(block, 0, content, (int) entry.getLogicalOffset(), block.length);
+		}
+		return content;
+	}
+
+	//half random, half repeated, so it is compressed
+	static byte[] content(int size) {
+		Random random = new Random(size);
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++) {
+			content[i] = (byte) (i % 1000 < 500 ? random.nextInt(256) : 'a' + i % 7);
+		}
+		return content;
+	}
+}
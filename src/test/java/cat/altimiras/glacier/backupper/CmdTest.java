@@ -0,0 +1,28 @@
+package cat.altimiras.glacier.backupper;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class CmdTest {
+
+	@Test
+	public void listedFilesAreNamedByTheirPath() throws Exception {
+		Path list = Files.createTempFile("list", ".txt");
+		try {
+			Files.write(list, Arrays.asList("# logs", "a/x.log", "", "b/x.log", "./a/x.log", "/var/y.log"));
+			Map<String, Path> files = Cmd.listFiles(list);
+			assertEquals(Arrays.asList("a/x.log", "b/x.log", "/var/y.log"), new ArrayList<>(files.keySet()));
+			assertEquals(Paths.get("b/x.log"), files.get("b/x.log"));
+		} finally {
+			Files.delete(list);
+		}
+	}
+}
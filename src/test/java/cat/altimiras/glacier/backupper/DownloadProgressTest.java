@@ -0,0 +1,141 @@
+package cat.altimiras.glacier.backupper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadProgressTest {
+
+	//checksum, state and tree hash
+	private static final int SLOT = 4 + 1 + 32;
+
+	private Path dir;
+	private Path target;
+	private Path progress;
+	private FileChannel output;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("progress");
+		target = dir.resolve("target");
+		progress = dir.resolve("target.progress");
+		output = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		output.close();
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+		}
+	}
+
+	@Test
+	public void rangesDoneAreRecovered() throws Exception {
+		try (DownloadProgress p = DownloadProgress.open(target, output, "job", 4)) {
+			assertEquals(4, p.pending());
+			p.done(1, hash(1));
+			p.done(3, null);
+		}
+
+		try (DownloadProgress p = DownloadProgress.open(target, output, "job", 4)) {
+			assertEquals(2, p.pending());
+			assertFalse(p.isDone(0));
+			assertTrue(p.isDone(1));
+			assertTrue(p.isDone(3));
+			//range 3 was recorded without its tree hash
+			assertNull(p.treeHashes());
+			p.done(0, hash(0));
+			p.done(2, hash(2));
+			p.done(3, hash(3));
+		}
+
+		try (DownloadProgress p = DownloadProgress.open(target, output, "job", 4)) {
+			assertEquals(0, p.pending());
+			for (int i = 0; i < 4; i++) {
+				assertArrayEquals(hash(i), p.treeHashes().get(i));
+			}
+		}
+	}
+
+	@Test
+	public void tornSlotIsDownloadedAgain() throws Exception {
+		try (DownloadProgress p = DownloadProgress.open(target, output, "job", 3)) {
+			p.done(0, hash(0));
+			p.done(1, hash(1));
+		}
+		long slot = Files.size(progress) - 2 * SLOT;
+		try (FileChannel file = FileChannel.open(progress, StandardOpenOption.WRITE)) {
+			//only the first half of the slot reached the disk
+			file.write(ByteBuffer.allocate(SLOT / 2), slot + SLOT / 2);
+		}
+
+		try (DownloadProgress p = DownloadProgress.open(target, output, "job", 3)) {
+			assertTrue(p.isDone(0));
+			assertFalse(p.isDone(1));
+			assertEquals(2, p.pending());
+		}
+	}
+
+	@Test
+	public void slotIsValidOnlyAtItsPosition() throws Exception {
+		try (DownloadProgress p = DownloadProgress.open(target, output, "job", 2)) {
+			p.done(0, hash(0));
+		}
+		long slots = Files.size(progress) - 2 * SLOT;
+		try (FileChannel file = FileChannel.open(progress, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer slot = ByteBuffer.allocate(SLOT);
+			file.read(slot, slots);
+			slot.flip();
+			file.write(slot, slots + SLOT);
+		}
+
+		try (DownloadProgress p = DownloadProgress.open(target, output, "job", 2)) {
+			assertTrue(p.isDone(0));
+			assertFalse(p.isDone(1));
+		}
+	}
+
+	@Test
+	public void otherDownloadStartsAgain() throws Exception {
+		try (DownloadProgress p = DownloadProgress.open(target, output, "job", 2)) {
+			p.done(0, hash(0));
+		}
+
+		try (DownloadProgress p = DownloadProgress.open(target, output, "other job", 2)) {
+			assertEquals(2, p.pending());
+		}
+		try (DownloadProgress p = DownloadProgress.open(target, output, "other job", 3)) {
+			assertEquals(3, p.pending());
+		}
+	}
+
+	@Test
+	public void progressIsRemovedOnceCompleted() throws Exception {
+		DownloadProgress p = DownloadProgress.open(target, output, "job", 1);
+		p.done(0, hash(0));
+		p.completed();
+		assertFalse(Files.exists(progress));
+	}
+
+	private static byte[] hash(int range) {
+		byte[] hash = new byte[32];
+		Arrays.fill(hash, (byte) (range + 1));
+		return hash;
+	}
+}
@@ -0,0 +1,85 @@
+package cat.altimiras.glacier.backupper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FileChunkerTest {
+
+	private static final int MB = 1024 * 1024;
+
+	private Path file;
+
+	@Before
+	public void setUp() throws Exception {
+		file = Files.createTempFile("chunker", ".bin");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Files.deleteIfExists(file);
+	}
+
+	@Test
+	public void smallFileDoesNotTakeAWholePart() throws Exception {
+		Files.write(file, new byte[1000]);
+		try (FileChunker.PartIterator parts = FileChunker.partitionate(file, 16 * MB)) {
+			FileChunker.Chunk chunk = parts.next();
+			ByteBuffer window = chunk.getContent()[0];
+			assertEquals(1000, window.remaining());
+			assertTrue(window.capacity() < MB);
+			chunk.release();
+		}
+	}
+
+	@Test
+	public void windowsAreReusedByOtherIterators() throws Exception {
+		Files.write(file, new byte[1000]);
+		ByteBuffer first;
+		try (FileChunker.PartIterator parts = FileChunker.partitionate(file, 16 * MB)) {
+			FileChunker.Chunk chunk = parts.next();
+			first = chunk.getContent()[0];
+			chunk.release();
+		}
+		try (FileChunker.PartIterator parts = FileChunker.partitionate(file, 16 * MB)) {
+			FileChunker.Chunk chunk = parts.next();
+			assertTrue(first == chunk.getContent()[0]);
+			chunk.release();
+		}
+	}
+
+	@Test
+	public void partsAreReadWithTheirTreeHash() throws Exception {
+		byte[] content = new byte[5 * MB + 3];
+		new Random(1).nextBytes(content);
+		Files.write(file, content);
+
+		List<byte[]> checksums = new ArrayList<>();
+		try (FileChunker.PartIterator parts = FileChunker.partitionate(file, 2 * MB)) {
+			assertEquals(3, parts.getExpectedChunks());
+			while (parts.hasNext()) {
+				FileChunker.Chunk chunk = parts.next();
+				byte[] read = new byte[(int) chunk.getLength()];
+				chunk.getContent()[0].duplicate().get(read);
+				byte[] expected = new byte[read.length];
+				System.arraycopy(content, (int) chunk.getStart(), expected, 0, read.length);
+				assertArrayEquals(expected, read);
+				assertArrayEquals(new TreeHasher().update(expected, 0, expected.length).digest(), chunk.getChecksum());
+				checksums.add(chunk.getChecksum());
+				chunk.release();
+			}
+		}
+		assertArrayEquals(new TreeHasher().update(content, 0, content.length).digest(), Hash.calculateTreeHash(checksums));
+	}
+}
@@ -0,0 +1,99 @@
+package cat.altimiras.glacier.backupper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import software.amazon.awssdk.utils.BinaryUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class FingerprintCacheTest {
+
+	private Path dir;
+	private Path file;
+	private Path cache;
+	private byte[] content;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("fingerprints");
+		file = dir.resolve("file.bin");
+		cache = dir.resolve("inventory.json.fingerprints");
+		content = new byte[3 * 1024 * 1024 + 7];
+		new Random(1).nextBytes(content);
+		Files.write(file, content);
+		Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+		}
+	}
+
+	@Test
+	public void fingerprintIsTheTreeHashOfTheContent() throws Exception {
+		assertEquals(treeHash(content), new FingerprintCache(cache).fingerprint(file));
+	}
+
+	@Test
+	public void fileNotChangedIsNotReadAgain() throws Exception {
+		FingerprintCache fingerprints = new FingerprintCache(cache);
+		String fingerprint = fingerprints.fingerprint(file);
+		fingerprints.store();
+
+		//same size and modification time, only a new read would see it
+		FileTime modified = Files.getLastModifiedTime(file);
+		content[0] ^= 1;
+		Files.write(file, content);
+		Files.setLastModifiedTime(file, modified);
+
+		assertEquals(fingerprint, new FingerprintCache(cache).fingerprint(file));
+	}
+
+	@Test
+	public void fingerprintComputedByAnUploadIsCached() throws Exception {
+		FingerprintCache fingerprints = new FingerprintCache(cache);
+		FingerprintCache.Stat stat = fingerprints.stat(file);
+		assertNull(fingerprints.cached(stat));
+
+		fingerprints.put(stat, "uploaded");
+		fingerprints.store();
+		assertEquals("uploaded", new FingerprintCache(cache).cached(fingerprints.stat(file)));
+	}
+
+	@Test
+	public void changedFileIsNotCached() throws Exception {
+		FingerprintCache fingerprints = new FingerprintCache(cache);
+		FingerprintCache.Stat stat = fingerprints.stat(file);
+		fingerprints.put(stat, "uploaded");
+
+		Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 30_000));
+		FingerprintCache.Stat changed = fingerprints.stat(file);
+		assertNull(fingerprints.cached(changed));
+		assertNotEquals(stat.getVersion(), changed.getVersion());
+	}
+
+	@Test
+	public void fileModifiedJustBeforeIsNotCached() throws Exception {
+		Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+		FingerprintCache fingerprints = new FingerprintCache(cache);
+		FingerprintCache.Stat stat = fingerprints.stat(file);
+		fingerprints.put(stat, "uploaded");
+		assertNull(fingerprints.cached(stat));
+	}
+
+	private static String treeHash(byte[] content) {
+		return BinaryUtils.toHex(new TreeHasher().update(content, 0, content.length).digest());
+	}
+}
@@ -0,0 +1,67 @@
+package cat.altimiras.glacier.backupper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+
+public class GlacierManagerTest {
+
+	private static final long MB = 1024 * 1024;
+
+	private GlacierManager manager;
+
+	@Before
+	public void setUp() {
+		manager = new GlacierManager("key", "secret", false, 10, Duration.ofSeconds(60), 0, null);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		manager.close();
+	}
+
+	@Test
+	public void retrievedRangesAreAlignedToAMB() {
+		assertEquals(0, GlacierManager.alignedStart(MB - 1));
+		assertEquals(2 * MB, GlacierManager.alignedStart(2 * MB));
+		assertEquals(2 * MB - 1, GlacierManager.alignedEnd(MB + 1, 10 * MB));
+		assertEquals(MB - 1, GlacierManager.alignedEnd(MB, 10 * MB));
+	}
+
+	@Test
+	public void retrievedRangesEndWithTheArchive() {
+		assertEquals(10 * MB + 4, GlacierManager.alignedEnd(10 * MB + 1, 10 * MB + 5));
+	}
+
+	@Test
+	public void rangesAreOfTheDefaultSize() {
+		assertEquals(16 * MB, manager.rangeSize(0));
+	}
+
+	@Test
+	public void rangesOfAnyNumberOfMB() {
+		assertEquals(3 * MB, manager.rangeSize(3 * MB));
+		//bigger than an int
+		assertEquals(4096 * MB, manager.rangeSize(4096 * MB));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rangesNotAlignedToAMBAreRejected() {
+		manager.rangeSize(MB + 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeRangesAreRejected() {
+		manager.rangeSize(-MB);
+	}
+
+	@Test
+	public void rangesInMemoryAreNotBiggerThanAWindow() {
+		assertEquals(16 * MB, GlacierManager.bufferedRangeSize(16 * MB));
+		assertEquals(FileChunker.MAX_WINDOW, GlacierManager.bufferedRangeSize(2048 * MB));
+	}
+}
@@ -0,0 +1,221 @@
+package cat.altimiras.glacier.backupper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InventoryManagerJsonTest {
+
+	private Path dir;
+	private Path path;
+	private Path journal;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("inventory");
+		path = dir.resolve("inventory.json");
+		journal = dir.resolve("inventory.json.journal");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+		}
+	}
+
+	@Test
+	public void changesAreReplayedFromTheJournal() throws Exception {
+		InventoryManagerJson inventory = new InventoryManagerJson(path);
+		inventory.addItem(item("a", "archive-a"));
+		inventory.addJob(new Job("job", "archive-a", "a", "region", "vault", false));
+		inventory.close();
+		assertFalse(Files.exists(path));
+
+		inventory = new InventoryManagerJson(path);
+		assertEquals("archive-a", inventory.findItemByName("a").get().getArchiveId());
+		assertTrue(inventory.findJob(inventory.findItemByName("a").get()).isPresent());
+		inventory.close();
+	}
+
+	@Test
+	public void tornLastLineIsDiscarded() throws Exception {
+		InventoryManagerJson inventory = new InventoryManagerJson(path);
+		inventory.addItem(item("a", "archive-a"));
+		inventory.close();
+		long size = Files.size(journal);
+		Files.write(journal, "{\"sequence\":2,\"operation\":\"ADD_IT".getBytes(), StandardOpenOption.APPEND);
+
+		inventory = new InventoryManagerJson(path);
+		assertTrue(inventory.findItemByName("a").isPresent());
+		assertEquals(size, Files.size(journal));
+		inventory.addItem(item("b", "archive-b"));
+		inventory.close();
+
+		inventory = new InventoryManagerJson(path);
+		assertTrue(inventory.findItemByName("b").isPresent());
+		inventory.close();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void corruptedLineInTheMiddleIsAnError() throws Exception {
+		InventoryManagerJson inventory = new InventoryManagerJson(path);
+		inventory.addItem(item("a", "archive-a"));
+		inventory.close();
+		Files.write(journal, "not json\n".getBytes(), StandardOpenOption.APPEND);
+		Files.write(journal, Files.readAllLines(journal).get(0).concat("\n").getBytes(), StandardOpenOption.APPEND);
+
+		new InventoryManagerJson(path);
+	}
+
+	@Test
+	public void journalIsCompactedIntoTheSnapshot() throws Exception {
+		InventoryManagerJson inventory = new InventoryManagerJson(path);
+		//more than the minimum size of the journal
+		int batches = 0;
+		while (!Files.exists(path)) {
+			List<Item> items = new ArrayList<>();
+			for (int i = 0; i < 100; i++) {
+				items.add(item("file-" + batches + "-" + i, "archive-" + batches + "-" + i));
+			}
+			inventory.addUploadedItems(items, Collections.emptyList());
+			batches++;
+		}
+		assertTrue(Files.size(journal) < Files.size(path));
+		inventory.addItem(item("last", "archive-last"));
+		inventory.close();
+
+		inventory = new InventoryManagerJson(path);
+		int items = 0;
+		for (Item ignored : inventory.getItems()) {
+			items++;
+		}
+		assertEquals(batches * 100 + 1, items);
+		assertTrue(inventory.findItemByName("file-0-0").isPresent());
+		assertTrue(inventory.findItemByName("last").isPresent());
+		inventory.close();
+	}
+
+	@Test
+	public void changesInTheSnapshotAreNotAppliedTwice() throws Exception {
+		InventoryManagerJson inventory = new InventoryManagerJson(path);
+		Item item = item("a", "archive-a");
+		inventory.addItem(item);
+		inventory.close();
+		byte[] lines = Files.readAllBytes(journal);
+
+		//crash after the snapshot was written but before the journal was emptied
+		inventory = new InventoryManagerJson(path);
+		inventory.removeItem(item);
+		inventory.addItem(item("b", "archive-b"));
+		while (!Files.exists(path)) {
+			inventory.addUploadedItems(Collections.singletonList(item("filler", null)), Collections.emptyList());
+		}
+		inventory.close();
+		Files.write(journal, lines);
+
+		inventory = new InventoryManagerJson(path);
+		assertFalse(inventory.findItemByName("a").isPresent());
+		assertTrue(inventory.findItemByName("b").isPresent());
+		inventory.close();
+	}
+
+	@Test
+	public void uploadedPartsAreReplayed() throws Exception {
+		InventoryManagerJson inventory = new InventoryManagerJson(path);
+		PendingUpload upload = new PendingUpload("a", "checksum", "vault", "region", 1024 * 1024, 4 * 1024 * 1024);
+		upload.setUploadId("upload");
+		inventory.addUpload(upload);
+		upload.setParallel(6);
+		inventory.markPartUploaded(upload, new PendingUpload.Part(0, "aa"));
+		inventory.close();
+
+		inventory = new InventoryManagerJson(path);
+		PendingUpload replayed = inventory.findUploadByChecksum("checksum").get();
+		assertEquals(1, replayed.getParts().size());
+		assertEquals(6, replayed.getParallel());
+		inventory.close();
+	}
+
+	@Test
+	public void pendingUploadIsChangedOnlyThroughTheInventory() throws Exception {
+		InventoryManagerJson inventory = new InventoryManagerJson(path);
+		PendingUpload upload = new PendingUpload("a", "checksum", "vault", "region", 1024 * 1024, 4 * 1024 * 1024);
+		upload.setUploadId("upload");
+		inventory.addUpload(upload);
+		upload.getParts().add(new PendingUpload.Part(0, "aa"));
+		assertEquals(0, inventory.findUploadByChecksum("checksum").get().getParts().size());
+
+		PendingUpload found = inventory.findUploadByChecksum("checksum").get();
+		found.getParts().add(new PendingUpload.Part(0, "aa"));
+		assertEquals(0, inventory.findUploadByChecksum("checksum").get().getParts().size());
+
+		inventory.markPartUploaded(found, new PendingUpload.Part(1024 * 1024, "bb"));
+		assertEquals(1, inventory.findUploadByChecksum("checksum").get().getParts().size());
+		inventory.close();
+	}
+
+	@Test
+	public void versionsWithoutArchiveAreKept() throws Exception {
+		InventoryManagerJson inventory = new InventoryManagerJson(path);
+		Item first = item("a", null);
+		inventory.addItem(first);
+		inventory.addItem(item("a", null));
+		assertEquals(2, inventory.findItemsByName("a").size());
+		inventory.removeItem(first);
+		inventory.close();
+
+		inventory = new InventoryManagerJson(path);
+		assertEquals(1, inventory.findItemsByName("a").size());
+		inventory.close();
+	}
+
+	@Test
+	public void lastVersionIsFoundByName() throws Exception {
+		InventoryManagerJson inventory = new InventoryManagerJson(path);
+		Item first = item("a", "archive-1");
+		Item last = item("a", "archive-2");
+		inventory.addItem(first);
+		inventory.addItem(last);
+		assertEquals("archive-2", inventory.findItemByName("a").get().getArchiveId());
+
+		inventory.removeItem(last);
+		assertEquals("archive-1", inventory.findItemByName("a").get().getArchiveId());
+		inventory.close();
+	}
+
+	@Test
+	public void jobIsFoundByTheArchiveOfTheVersion() throws Exception {
+		InventoryManagerJson inventory = new InventoryManagerJson(path);
+		Item first = item("a", "archive-1");
+		Item last = item("a", "archive-2");
+		inventory.addItem(first);
+		inventory.addItem(last);
+		inventory.addJob(new Job("job-1", "archive-1", "a", "region", "vault", false));
+		assertEquals("job-1", inventory.findJob(first).get().getJobId());
+		assertFalse(inventory.findJob(last).isPresent());
+
+		inventory.addJob(new Job("job-2", "archive-2", "a", "region", "vault", false));
+		assertEquals("job-2", inventory.findJob(inventory.findItemByName("a").get()).get().getJobId());
+		assertEquals("job-1", inventory.findJob(first).get().getJobId());
+		inventory.close();
+	}
+
+	private static Item item(String name, String archiveId) {
+		return new Item(name, name + "-checksum", archiveId, 10, name + "-treehash", "vault", "region");
+	}
+}
@@ -0,0 +1,85 @@
+package cat.altimiras.glacier.backupper;
+
+import org.junit.Test;
+import software.amazon.awssdk.core.exception.ApiCallAttemptTimeoutException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RetryTest {
+
+	@Test
+	public void overloadedServiceIsCongestion() {
+		assertTrue(Retry.isCongestion(status(503)));
+		assertTrue(Retry.isCongestion(status(429)));
+		assertTrue(Retry.isRetryable(status(503)));
+		assertFalse(Retry.isCongestion(status(408)));
+		assertTrue(Retry.isRetryable(status(408)));
+	}
+
+	@Test
+	public void requestErrorsAreNotRetried() {
+		assertFalse(Retry.isRetryable(status(400)));
+		assertFalse(Retry.isRetryable(status(404)));
+	}
+
+	@Test
+	public void onlyClientErrorsOfIOAreRetried() {
+		assertTrue(Retry.isRetryable(SdkClientException.create("Unable to execute HTTP request", new SocketException("Connection reset"))));
+		assertTrue(Retry.isRetryable(ApiCallAttemptTimeoutException.create(1000)));
+		assertTrue(Retry.isRetryable(new IOException("tree hash mismatch")));
+		assertFalse(Retry.isRetryable(SdkClientException.create("Unable to load credentials")));
+		assertFalse(Retry.isRetryable(new IllegalStateException()));
+	}
+
+	@Test
+	public void attemptIsRepeatedTillItSucceeds() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		AtomicInteger congested = new AtomicInteger();
+		String result = Retry.withRetries("test", () -> {
+			if (attempts.incrementAndGet() < 3) {
+				return failed(status(503));
+			}
+			return CompletableFuture.completedFuture("done");
+		}, congested::incrementAndGet).get();
+
+		assertEquals("done", result);
+		assertEquals(3, attempts.get());
+		assertEquals(2, congested.get());
+	}
+
+	@Test
+	public void errorNotRetryableFailsAtOnce() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		try {
+			Retry.withRetries("test", () -> {
+				attempts.incrementAndGet();
+				return failed(SdkClientException.create("Unable to marshall request"));
+			}, () -> fail("not a congestion")).get();
+			fail("error expected");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof SdkClientException);
+		}
+		assertEquals(1, attempts.get());
+	}
+
+	private static SdkServiceException status(int statusCode) {
+		return SdkServiceException.builder().statusCode(statusCode).build();
+	}
+
+	private static CompletableFuture<String> failed(Throwable e) {
+		CompletableFuture<String> future = new CompletableFuture<>();
+		future.completeExceptionally(e);
+		return future;
+	}
+}
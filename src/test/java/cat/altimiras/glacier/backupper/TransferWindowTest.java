@@ -0,0 +1,95 @@
+package cat.altimiras.glacier.backupper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TransferWindowTest {
+
+	private static final long MS = 1_000_000;
+
+	@Test
+	public void windowIsNotBiggerThanTheMax() {
+		assertEquals(4, new TransferWindow(10, 4, false).size());
+	}
+
+	@Test
+	public void autotuneGrowsWhileThroughputImproves() throws Exception {
+		TransferWindow window = new TransferWindow(4, 50, true);
+		sample(window, 1);
+		assertEquals(5, window.size());
+		sample(window, 1_000_000);
+		assertEquals(6, window.size());
+	}
+
+	@Test
+	public void autotuneTurnsBackWhenThroughputDrops() throws Exception {
+		TransferWindow window = new TransferWindow(4, 50, true);
+		sample(window, 1_000_000);
+		assertEquals(5, window.size());
+		sample(window, 1);
+		assertEquals(4, window.size());
+	}
+
+	@Test
+	public void autotuneIsBoundedByTheMax() throws Exception {
+		TransferWindow window = new TransferWindow(4, 4, true);
+		sample(window, 1);
+		assertEquals(4, window.size());
+	}
+
+	@Test
+	public void congestionHalvesTheWindow() throws Exception {
+		TransferWindow window = new TransferWindow(8, 50, false);
+		window.congested();
+		assertEquals(4, window.size());
+	}
+
+	@Test
+	public void windowGrowsBackOneByOneToItsInitialSize() throws Exception {
+		TransferWindow window = new TransferWindow(8, 50, false);
+		window.congested();
+		//one more once a whole window has succeeded
+		for (int i = 0; i < 3; i++) {
+			window.acquire();
+			window.completed(1, MS);
+		}
+		assertEquals(4, window.size());
+		window.acquire();
+		window.completed(1, MS);
+		assertEquals(5, window.size());
+
+		sample(window, 1);
+		sample(window, 1);
+		sample(window, 1);
+		sample(window, 1);
+		assertEquals(8, window.size());
+	}
+
+	@Test
+	public void failuresOfTheSameBurstHalveTheWindowOnce() throws Exception {
+		TransferWindow window = new TransferWindow(8, 50, false);
+		window.acquire();
+		//transfers take a minute, the failures of the ones in flight come within it
+		window.completed(1, 60_000 * MS);
+		window.congested();
+		window.congested();
+		assertEquals(4, window.size());
+	}
+
+	@Test
+	public void windowIsNeverEmpty() {
+		TransferWindow window = new TransferWindow(1, 50, false);
+		window.congested();
+		assertEquals(1, window.size());
+	}
+
+	//a whole window of transfers, so the window decides
+	static void sample(TransferWindow window, long bytes) throws InterruptedException {
+		int transfers = Math.max(4, window.size());
+		for (int i = 0; i < transfers; i++) {
+			window.acquire();
+			window.completed(bytes, MS);
+		}
+	}
+}
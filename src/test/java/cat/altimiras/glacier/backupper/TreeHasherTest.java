@@ -0,0 +1,95 @@
+package cat.altimiras.glacier.backupper;
+
+import org.junit.Test;
+import software.amazon.awssdk.utils.BinaryUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tree hashes of a known content, computed apart following
+ * https://docs.aws.amazon.com/amazonglacier/latest/dev/checksum-calculations.html
+ */
+public class TreeHasherTest {
+
+	private static final int MB = 1024 * 1024;
+
+	@Test
+	public void emptyContentIsTheHashOfNothing() {
+		assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", hash(0));
+	}
+
+	@Test
+	public void contentOfOneLeafIsItsHash() {
+		assertEquals("6e340b9cffb37a989ca544e6bb780a2c78901d3fb33738768511a30617afa01d", hash(1));
+		assertEquals("631b84027d6b9e52b539c4e8373622d23032dfadc64d60af87339c9037e4f769", hash(MB));
+	}
+
+	@Test
+	public void leavesArePairedByLevel() {
+		assertEquals("a9c574ce937d2371daf87cdd0e75396b096d7f74a66c764e4c656bd12b2e7bf9", hash(MB + 1));
+		assertEquals("c9e0c11a00161b193e0a1b3692ec553d4033a887f2086a7cadd4cd722d87f09f", hash(3 * MB + 5));
+		assertEquals("8bfce57c6a4076b3e930e725fbaa00beeffff0f0d9a6491a89a53baa73b4810d", hash(7 * MB));
+	}
+
+	@Test
+	public void contentCanComeInAnySlices() {
+		byte[] content = content(3 * MB + 5);
+		TreeHasher hasher = new TreeHasher();
+		int offset = 0;
+		int slice = 1;
+		while (offset < content.length) {
+			int length = Math.min(slice, content.length - offset);
+			hasher.update(content, offset, length);
+			offset += length;
+			slice = slice * 3 + 7;
+		}
+		assertEquals("c9e0c11a00161b193e0a1b3692ec553d4033a887f2086a7cadd4cd722d87f09f", BinaryUtils.toHex(hasher.digest()));
+	}
+
+	@Test
+	public void subtreesAreFoldedAtTheirLevel() {
+		byte[] content = content(7 * MB);
+		TreeHasher hasher = new TreeHasher();
+		//4 MB, 2 MB and 1 MB
+		hasher.addNode(new TreeHasher().update(content, 0, 4 * MB).digest(), 2);
+		hasher.addNode(new TreeHasher().update(content, 4 * MB, 2 * MB).digest(), 1);
+		hasher.addLeaf(new TreeHasher().update(content, 6 * MB, MB).digest());
+		assertEquals("8bfce57c6a4076b3e930e725fbaa00beeffff0f0d9a6491a89a53baa73b4810d", BinaryUtils.toHex(hasher.digest()));
+	}
+
+	@Test
+	public void hasherIsReusedOnceDigested() {
+		TreeHasher hasher = new TreeHasher();
+		hasher.update(content(MB + 1), 0, MB + 1).digest();
+		assertEquals("6e340b9cffb37a989ca544e6bb780a2c78901d3fb33738768511a30617afa01d", BinaryUtils.toHex(hasher.update(content(1), 0, 1).digest()));
+	}
+
+	@Test
+	public void fileIsHashedByWindows() throws Exception {
+		//bigger than a window, with a last leaf not complete
+		int size = TreeHash.WINDOW + 3 * MB + 5;
+		Path file = Files.createTempFile("treehash", ".bin");
+		try {
+			Files.write(file, content(size));
+			String expected = BinaryUtils.toHex(new TreeHasher().update(content(size), 0, size).digest());
+			assertEquals(expected, BinaryUtils.toHex(TreeHash.computeSHA256TreeHash(file.toFile())));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	private static String hash(int size) {
+		return BinaryUtils.toHex(new TreeHasher().update(content(size), 0, size).digest());
+	}
+
+	private static byte[] content(int size) {
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++) {
+			content[i] = (byte) (i % 251);
+		}
+		return content;
+	}
+}